@@ -2,398 +2,196 @@ package org.apache.cordova.health;
 
 import androidx.health.connect.client.records.ExerciseSessionRecord;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * Maps activities with exercise type and viceversa
+ * Both directions are lookup tables built once: an array indexed by exercise type
+ * and a map of activity names, in lower case
  */
 public class ActivityMapper {
 
-    static String activityFromExerciseType(int exType){
+    private static final String[] ACTIVITIES;
+    private static final Map<String, Integer> EXERCISE_TYPES = new HashMap<>();
 
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BADMINTON){
-            return "badminton";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BASEBALL){
-            return "baseball";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BASKETBALL){
-            return "basketball";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BIKING){
-            return "biking";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BOXING){
-            return "boxing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BIKING_STATIONARY){
-            return "biking.stationary";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_BOOT_CAMP){
-            return "bootcamp";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_CALISTHENICS){
-            return "calisthenics";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_CRICKET){
-            return "cricket";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_DANCING){
-            return "dancing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ELLIPTICAL){
-            return "elliptical";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_EXERCISE_CLASS){
-            return "exercise_class";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_FENCING){
-            return "fencing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AMERICAN){
-            return "football.american";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AUSTRALIAN){
-            return "football.australian";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_FRISBEE_DISC){
-            return "frisbee_disc";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_GOLF){
-            return "golf";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_GUIDED_BREATHING){
-            return "guided_breathing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_GYMNASTICS){
-            return "gymnastics";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_HANDBALL){
-            return "handball";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_HIGH_INTENSITY_INTERVAL_TRAINING){
-            return "interval_training.high_intensity";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_HIKING){
-            return "hiking";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ICE_HOCKEY){
-            return "hockey";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ICE_SKATING){
-            return "ice_skating";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_MARTIAL_ARTS){
-            return "martial_arts";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_PADDLING){
-            return "paddle_sports";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_PARAGLIDING){
-            return "paragliding";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_PILATES){
-            return "pilates";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_RACQUETBALL){
-            return "racquetball";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ROCK_CLIMBING){
-            return "rock_climbing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ROLLER_HOCKEY){
-            return "hockey.roller";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ROWING){
-            return "rowing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_ROWING_MACHINE){
-            return "rowing.machine";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_RUGBY){
-            return "rugby";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_RUNNING){
-            return "running";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_RUNNING_TREADMILL){
-            return "running.treadmill";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SAILING){
-            return "sailing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SCUBA_DIVING){
-            return "scuba_diving";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SKATING){
-            return "skating";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SKIING){
-            return "skiing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SNOWBOARDING){
-            return "snowboarding";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SNOWSHOEING){
-            return "snowshoeing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SOCCER){
-            return "football.soccer";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SOFTBALL){
-            return "softball";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SQUASH){
-            return "squash";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING){
-            return "stair_climbing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING_MACHINE){
-            return "stair_climbing.machine";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING){
-            return "strength_training";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_STRETCHING){
-            return "stretching";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SURFING){
-            return "surfing";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_OPEN_WATER){
-            return "swimming.open_water";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_POOL){
-            return "swimming.pool";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_TABLE_TENNIS){
-            return "table_tennis";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_TENNIS){
-            return "tennis";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_VOLLEYBALL){
-            return "volleyball";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_WALKING){
-            return "walking";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_WATER_POLO){
-            return "water_polo";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_WEIGHTLIFTING){
-            return "weightlifting";
-        }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_WHEELCHAIR){
-            return "wheelchair";
+    static {
+        Map<Integer, String> activities = new LinkedHashMap<>();
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BADMINTON, "badminton");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BASEBALL, "baseball");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BASKETBALL, "basketball");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BIKING, "biking");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BOXING, "boxing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BIKING_STATIONARY, "biking.stationary");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_BOOT_CAMP, "bootcamp");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_CALISTHENICS, "calisthenics");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_CRICKET, "cricket");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_DANCING, "dancing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ELLIPTICAL, "elliptical");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_EXERCISE_CLASS, "exercise_class");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_FENCING, "fencing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AMERICAN, "football.american");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AUSTRALIAN, "football.australian");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_FRISBEE_DISC, "frisbee_disc");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_GOLF, "golf");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_GUIDED_BREATHING, "guided_breathing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_GYMNASTICS, "gymnastics");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_HANDBALL, "handball");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_HIGH_INTENSITY_INTERVAL_TRAINING, "interval_training.high_intensity");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_HIKING, "hiking");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ICE_HOCKEY, "hockey");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ICE_SKATING, "ice_skating");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_MARTIAL_ARTS, "martial_arts");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_PADDLING, "paddle_sports");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_PARAGLIDING, "paragliding");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_PILATES, "pilates");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_RACQUETBALL, "racquetball");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ROCK_CLIMBING, "rock_climbing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ROLLER_HOCKEY, "hockey.roller");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ROWING, "rowing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_ROWING_MACHINE, "rowing.machine");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_RUGBY, "rugby");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_RUNNING, "running");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_RUNNING_TREADMILL, "running.treadmill");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SAILING, "sailing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SCUBA_DIVING, "scuba_diving");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SKATING, "skating");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SKIING, "skiing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SNOWBOARDING, "snowboarding");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SNOWSHOEING, "snowshoeing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SOCCER, "football.soccer");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SOFTBALL, "softball");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SQUASH, "squash");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING, "stair_climbing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING_MACHINE, "stair_climbing.machine");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING, "strength_training");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_STRETCHING, "stretching");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SURFING, "surfing");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_OPEN_WATER, "swimming.open_water");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_POOL, "swimming.pool");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_TABLE_TENNIS, "table_tennis");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_TENNIS, "tennis");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_VOLLEYBALL, "volleyball");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_WALKING, "walking");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_WATER_POLO, "water_polo");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_WEIGHTLIFTING, "weightlifting");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_WHEELCHAIR, "wheelchair");
+        activities.put(ExerciseSessionRecord.EXERCISE_TYPE_YOGA, "yoga");
+
+        int maxType = 0;
+        for (int exType : activities.keySet()) {
+            maxType = Math.max(maxType, exType);
         }
-        if(exType == ExerciseSessionRecord.EXERCISE_TYPE_YOGA){
-            return "yoga";
+        ACTIVITIES = new String[maxType + 1];
+        for (Map.Entry<Integer, String> activity : activities.entrySet()) {
+            ACTIVITIES[activity.getKey()] = activity.getValue();
         }
 
-        return "other";
+        EXERCISE_TYPES.put("other", ExerciseSessionRecord.EXERCISE_TYPE_OTHER_WORKOUT);
+        EXERCISE_TYPES.put("badminton", ExerciseSessionRecord.EXERCISE_TYPE_BADMINTON);
+        EXERCISE_TYPES.put("baseball", ExerciseSessionRecord.EXERCISE_TYPE_BASEBALL);
+        EXERCISE_TYPES.put("basketball", ExerciseSessionRecord.EXERCISE_TYPE_BASKETBALL);
+        EXERCISE_TYPES.put("biking", ExerciseSessionRecord.EXERCISE_TYPE_BIKING);
+        EXERCISE_TYPES.put("boxing", ExerciseSessionRecord.EXERCISE_TYPE_BOXING);
+        EXERCISE_TYPES.put("biking.stationary", ExerciseSessionRecord.EXERCISE_TYPE_BIKING_STATIONARY);
+        EXERCISE_TYPES.put("bootcamp", ExerciseSessionRecord.EXERCISE_TYPE_BOOT_CAMP);
+        EXERCISE_TYPES.put("calisthenics", ExerciseSessionRecord.EXERCISE_TYPE_CALISTHENICS);
+        EXERCISE_TYPES.put("cricket", ExerciseSessionRecord.EXERCISE_TYPE_CRICKET);
+        EXERCISE_TYPES.put("dancing", ExerciseSessionRecord.EXERCISE_TYPE_DANCING);
+        EXERCISE_TYPES.put("dancing.social", ExerciseSessionRecord.EXERCISE_TYPE_DANCING);
+        EXERCISE_TYPES.put("dancing.cardio", ExerciseSessionRecord.EXERCISE_TYPE_DANCING);
+        EXERCISE_TYPES.put("elliptical", ExerciseSessionRecord.EXERCISE_TYPE_ELLIPTICAL);
+        EXERCISE_TYPES.put("exercise_class", ExerciseSessionRecord.EXERCISE_TYPE_EXERCISE_CLASS);
+        EXERCISE_TYPES.put("fencing", ExerciseSessionRecord.EXERCISE_TYPE_FENCING);
+        EXERCISE_TYPES.put("football.american", ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AMERICAN);
+        EXERCISE_TYPES.put("football.australian", ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AUSTRALIAN);
+        EXERCISE_TYPES.put("frisbee_disc", ExerciseSessionRecord.EXERCISE_TYPE_FRISBEE_DISC);
+        EXERCISE_TYPES.put("golf", ExerciseSessionRecord.EXERCISE_TYPE_GOLF);
+        EXERCISE_TYPES.put("guided_breathing", ExerciseSessionRecord.EXERCISE_TYPE_GUIDED_BREATHING);
+        EXERCISE_TYPES.put("gymnastics", ExerciseSessionRecord.EXERCISE_TYPE_GYMNASTICS);
+        EXERCISE_TYPES.put("flexibility", ExerciseSessionRecord.EXERCISE_TYPE_GYMNASTICS);
+        EXERCISE_TYPES.put("handball", ExerciseSessionRecord.EXERCISE_TYPE_HANDBALL);
+        EXERCISE_TYPES.put("interval_training.high_intensity", ExerciseSessionRecord.EXERCISE_TYPE_HIGH_INTENSITY_INTERVAL_TRAINING);
+        EXERCISE_TYPES.put("hiking", ExerciseSessionRecord.EXERCISE_TYPE_HIKING);
+        EXERCISE_TYPES.put("hockey", ExerciseSessionRecord.EXERCISE_TYPE_ICE_HOCKEY);
+        EXERCISE_TYPES.put("ice_skating", ExerciseSessionRecord.EXERCISE_TYPE_ICE_SKATING);
+        EXERCISE_TYPES.put("martial_arts", ExerciseSessionRecord.EXERCISE_TYPE_MARTIAL_ARTS);
+        EXERCISE_TYPES.put("kickboxing", ExerciseSessionRecord.EXERCISE_TYPE_MARTIAL_ARTS);
+        EXERCISE_TYPES.put("paddle_sports", ExerciseSessionRecord.EXERCISE_TYPE_PADDLING);
+        EXERCISE_TYPES.put("paragliding", ExerciseSessionRecord.EXERCISE_TYPE_PARAGLIDING);
+        EXERCISE_TYPES.put("pilates", ExerciseSessionRecord.EXERCISE_TYPE_PILATES);
+        EXERCISE_TYPES.put("racquetball", ExerciseSessionRecord.EXERCISE_TYPE_RACQUETBALL);
+        EXERCISE_TYPES.put("rock_climbing", ExerciseSessionRecord.EXERCISE_TYPE_ROCK_CLIMBING);
+        EXERCISE_TYPES.put("hockey.roller", ExerciseSessionRecord.EXERCISE_TYPE_ROLLER_HOCKEY);
+        EXERCISE_TYPES.put("rowing", ExerciseSessionRecord.EXERCISE_TYPE_ROWING);
+        EXERCISE_TYPES.put("rowing.machine", ExerciseSessionRecord.EXERCISE_TYPE_ROWING_MACHINE);
+        EXERCISE_TYPES.put("rugby", ExerciseSessionRecord.EXERCISE_TYPE_RUGBY);
+        EXERCISE_TYPES.put("running", ExerciseSessionRecord.EXERCISE_TYPE_RUNNING);
+        EXERCISE_TYPES.put("running.treadmill", ExerciseSessionRecord.EXERCISE_TYPE_RUNNING_TREADMILL);
+        EXERCISE_TYPES.put("sailing", ExerciseSessionRecord.EXERCISE_TYPE_SAILING);
+        EXERCISE_TYPES.put("scuba_diving", ExerciseSessionRecord.EXERCISE_TYPE_SCUBA_DIVING);
+        EXERCISE_TYPES.put("skating", ExerciseSessionRecord.EXERCISE_TYPE_SKATING);
+        EXERCISE_TYPES.put("skiing", ExerciseSessionRecord.EXERCISE_TYPE_SKIING);
+        EXERCISE_TYPES.put("skiing.cross_country", ExerciseSessionRecord.EXERCISE_TYPE_SKIING);
+        EXERCISE_TYPES.put("skiing.downhill", ExerciseSessionRecord.EXERCISE_TYPE_SKIING);
+        EXERCISE_TYPES.put("snowboarding", ExerciseSessionRecord.EXERCISE_TYPE_SNOWBOARDING);
+        EXERCISE_TYPES.put("snowshoeing", ExerciseSessionRecord.EXERCISE_TYPE_SNOWSHOEING);
+        EXERCISE_TYPES.put("football.soccer", ExerciseSessionRecord.EXERCISE_TYPE_SOCCER);
+        EXERCISE_TYPES.put("softball", ExerciseSessionRecord.EXERCISE_TYPE_SOFTBALL);
+        EXERCISE_TYPES.put("squash", ExerciseSessionRecord.EXERCISE_TYPE_SQUASH);
+        EXERCISE_TYPES.put("stair_climbing", ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING);
+        EXERCISE_TYPES.put("stair_climbing.machine", ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING_MACHINE);
+        EXERCISE_TYPES.put("strength_training", ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING);
+        EXERCISE_TYPES.put("strength_training.functional", ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING);
+        EXERCISE_TYPES.put("crossfit", ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING);
+        EXERCISE_TYPES.put("core_training", ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING);
+        EXERCISE_TYPES.put("stretching", ExerciseSessionRecord.EXERCISE_TYPE_STRETCHING);
+        EXERCISE_TYPES.put("preparation_and_recovery", ExerciseSessionRecord.EXERCISE_TYPE_STRETCHING);
+        EXERCISE_TYPES.put("surfing", ExerciseSessionRecord.EXERCISE_TYPE_SURFING);
+        EXERCISE_TYPES.put("swimming.open_water", ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_OPEN_WATER);
+        EXERCISE_TYPES.put("swimming.pool", ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_POOL);
+        EXERCISE_TYPES.put("swimming", ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_POOL);
+        EXERCISE_TYPES.put("table_tennis", ExerciseSessionRecord.EXERCISE_TYPE_TABLE_TENNIS);
+        EXERCISE_TYPES.put("tennis", ExerciseSessionRecord.EXERCISE_TYPE_TENNIS);
+        EXERCISE_TYPES.put("volleyball", ExerciseSessionRecord.EXERCISE_TYPE_VOLLEYBALL);
+        EXERCISE_TYPES.put("walking", ExerciseSessionRecord.EXERCISE_TYPE_WALKING);
+        EXERCISE_TYPES.put("water_polo", ExerciseSessionRecord.EXERCISE_TYPE_WATER_POLO);
+        EXERCISE_TYPES.put("weightlifting", ExerciseSessionRecord.EXERCISE_TYPE_WEIGHTLIFTING);
+        EXERCISE_TYPES.put("wheelchair", ExerciseSessionRecord.EXERCISE_TYPE_WHEELCHAIR);
+        EXERCISE_TYPES.put("wheelchair.walkpace", ExerciseSessionRecord.EXERCISE_TYPE_WHEELCHAIR);
+        EXERCISE_TYPES.put("wheelchair.runpace", ExerciseSessionRecord.EXERCISE_TYPE_WHEELCHAIR);
+        EXERCISE_TYPES.put("yoga", ExerciseSessionRecord.EXERCISE_TYPE_YOGA);
     }
-    static int exerciseTypeFromActivity(String activityName) {
-        if (activityName.equalsIgnoreCase("other")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_OTHER_WORKOUT;
-        }
 
-        if (activityName.equalsIgnoreCase("badminton")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BADMINTON;
-        }
-        if (activityName.equalsIgnoreCase("baseball")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BASEBALL;
-        }
-        if (activityName.equalsIgnoreCase("basketball")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BASKETBALL;
-        }
-        if (activityName.equalsIgnoreCase("biking")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BIKING;
-        }
-        if (activityName.equalsIgnoreCase("boxing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BOXING;
-        }
-        if (activityName.equalsIgnoreCase("biking.stationary")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BIKING_STATIONARY;
-        }
-        if (activityName.equalsIgnoreCase("bootcamp")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_BOOT_CAMP;
-        }
-        if (activityName.equalsIgnoreCase("calisthenics")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_CALISTHENICS;
-        }
-        if (activityName.equalsIgnoreCase("cricket")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_CRICKET;
-        }
-        if (activityName.equalsIgnoreCase("dancing") ||
-                activityName.equalsIgnoreCase("dancing.social") ||
-                activityName.equalsIgnoreCase("dancing.cardio")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_DANCING;
-        }
-        if (activityName.equalsIgnoreCase("elliptical")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ELLIPTICAL;
-        }
-        if (activityName.equalsIgnoreCase("exercise_class")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_EXERCISE_CLASS;
-        }
-        if (activityName.equalsIgnoreCase("fencing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_FENCING;
-        }
-        if (activityName.equalsIgnoreCase("football.american")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AMERICAN;
-        }
-        if (activityName.equalsIgnoreCase("football.australian")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_FOOTBALL_AUSTRALIAN;
-        }
-        if (activityName.equalsIgnoreCase("frisbee_disc")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_FRISBEE_DISC;
-        }
-        if (activityName.equalsIgnoreCase("golf")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_GOLF;
-        }
-        if (activityName.equalsIgnoreCase("guided_breathing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_GUIDED_BREATHING;
-        }
-        if (activityName.equalsIgnoreCase("gymnastics") ||
-                activityName.equalsIgnoreCase("flexibility")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_GYMNASTICS;
-        }
-        if (activityName.equalsIgnoreCase("handball")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_HANDBALL;
-        }
-        if (activityName.equalsIgnoreCase("interval_training.high_intensity")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_HIGH_INTENSITY_INTERVAL_TRAINING;
-        }
-        if (activityName.equalsIgnoreCase("hiking")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_HIKING;
-        }
-        if (activityName.equalsIgnoreCase("hockey")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ICE_HOCKEY;
-        }
-        if (activityName.equalsIgnoreCase("ice_skating")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ICE_SKATING;
-        }
-        if (activityName.equalsIgnoreCase("martial_arts") ||
-                activityName.equalsIgnoreCase("kickboxing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_MARTIAL_ARTS;
-        }
-        if (activityName.equalsIgnoreCase("paddle_sports")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_PADDLING;
-        }
-        if (activityName.equalsIgnoreCase("paragliding")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_PARAGLIDING;
-        }
-        if (activityName.equalsIgnoreCase("pilates")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_PILATES;
-        }
-        if (activityName.equalsIgnoreCase("racquetball")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_RACQUETBALL;
-        }
-        if (activityName.equalsIgnoreCase("rock_climbing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ROCK_CLIMBING;
-        }
-        if (activityName.equalsIgnoreCase("hockey.roller")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ROLLER_HOCKEY;
-        }
-        if (activityName.equalsIgnoreCase("rowing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ROWING;
-        }
-        if (activityName.equalsIgnoreCase("rowing.machine")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_ROWING_MACHINE;
-        }
-        if (activityName.equalsIgnoreCase("rugby")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_RUGBY;
-        }
-        if (activityName.equalsIgnoreCase("running")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_RUNNING;
-        }
-        if (activityName.equalsIgnoreCase("running.treadmill")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_RUNNING_TREADMILL;
-        }
-        if (activityName.equalsIgnoreCase("sailing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SAILING;
-        }
-        if (activityName.equalsIgnoreCase("scuba_diving")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SCUBA_DIVING;
-        }
-        if (activityName.equalsIgnoreCase("skating")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SKATING;
-        }
-        if (activityName.equalsIgnoreCase("skiing") ||
-                activityName.equalsIgnoreCase("skiing.cross_country") ||
-                activityName.equalsIgnoreCase("skiing.downhill")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SKIING;
-        }
-        if (activityName.equalsIgnoreCase("snowboarding")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SNOWBOARDING;
-        }
-        if (activityName.equalsIgnoreCase("snowshoeing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SNOWSHOEING;
-        }
-        if (activityName.equalsIgnoreCase("football.soccer")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SOCCER;
-        }
-        if (activityName.equalsIgnoreCase("softball")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SOFTBALL;
-        }
-        if (activityName.equalsIgnoreCase("squash")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SQUASH;
-        }
-        if (activityName.equalsIgnoreCase("stair_climbing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING;
-        }
-        if (activityName.equalsIgnoreCase("stair_climbing.machine")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_STAIR_CLIMBING_MACHINE;
-        }
-        if (activityName.equalsIgnoreCase("strength_training") ||
-                activityName.equalsIgnoreCase("strength_training.functional") ||
-                activityName.equalsIgnoreCase("crossfit") ||
-                activityName.equalsIgnoreCase("core_training")
-        ) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_STRENGTH_TRAINING;
-        }
-        if (activityName.equalsIgnoreCase("stretching") ||
-                activityName.equalsIgnoreCase("preparation_and_recovery")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_STRETCHING;
-        }
-        if (activityName.equalsIgnoreCase("surfing")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SURFING;
-        }
-        if (activityName.equalsIgnoreCase("swimming.open_water")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_OPEN_WATER;
-        }
-        if (activityName.equalsIgnoreCase("swimming.pool")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_POOL;
-        }
-        if (activityName.equalsIgnoreCase("swimming")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_SWIMMING_POOL;
-        }
-        if (activityName.equalsIgnoreCase("table_tennis")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_TABLE_TENNIS;
-        }
-        if (activityName.equalsIgnoreCase("tennis")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_TENNIS;
-        }
-        if (activityName.equalsIgnoreCase("volleyball")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_VOLLEYBALL;
-        }
-        if (activityName.equalsIgnoreCase("walking")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_WALKING;
-        }
-        if (activityName.equalsIgnoreCase("water_polo")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_WATER_POLO;
-        }
-        if (activityName.equalsIgnoreCase("weightlifting")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_WEIGHTLIFTING;
-        }
-        if (activityName.equalsIgnoreCase("wheelchair") ||
-                activityName.equalsIgnoreCase("wheelchair.walkpace")||
-                activityName.equalsIgnoreCase("wheelchair.runpace")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_WHEELCHAIR;
-        }
-        if (activityName.equalsIgnoreCase("yoga")) {
-            return ExerciseSessionRecord.EXERCISE_TYPE_YOGA;
+    static String activityFromExerciseType(int exType) {
+        if (exType >= 0 && exType < ACTIVITIES.length && ACTIVITIES[exType] != null) {
+            return ACTIVITIES[exType];
         }
+        return "other";
+    }
 
+    static int exerciseTypeFromActivity(String activityName) {
+        Integer exType = EXERCISE_TYPES.get(activityName.toLowerCase(Locale.ROOT));
+        if (exType != null) {
+            return exType;
+        }
         return ExerciseSessionRecord.EXERCISE_TYPE_OTHER_WORKOUT;
     }
+
+    /**
+     * @return the activities that can be stored and queried, as activity name: exercise type,
+     * for example: { "badminton": 2, "biking": 8, ... }
+     */
+    static JSONObject activityTypes() throws JSONException {
+        JSONObject types = new JSONObject();
+        for (Map.Entry<String, Integer> exType : EXERCISE_TYPES.entrySet()) {
+            types.put(exType.getKey(), exType.getValue());
+        }
+        return types;
+    }
 }
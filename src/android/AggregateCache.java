@@ -0,0 +1,68 @@
+package org.apache.cordova.health;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the buckets returned by aggregated queries.
+ * Only buckets that are closed (whose end is in the past) are meant to be stored, so that
+ * a query that is repeated only needs to aggregate the buckets that are still open.
+ */
+public class AggregateCache {
+
+    /**
+     * Max number of buckets kept, the least recently used ones are dropped first
+     */
+    private static final int MAX_BUCKETS = 20000;
+
+    /**
+     * Marks a bucket for which Health Connect returned no result
+     */
+    public static final JSONObject EMPTY = new JSONObject();
+
+    private final Map<String, JSONObject> buckets = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+            return size() > MAX_BUCKETS;
+        }
+    };
+
+    /**
+     * Key of a bucket
+     *
+     * @param queryKey data type followed by the options of the query (bucket type, zone, origins)
+     * @param st       start of the bucket, in ms
+     * @param et       end of the bucket, in ms
+     */
+    public static String key(String queryKey, long st, long et) {
+        return queryKey + "|" + st + "|" + et;
+    }
+
+    /**
+     * @return the cached bucket, EMPTY if no result was returned for it, null if not cached
+     */
+    public synchronized JSONObject get(String key) {
+        return buckets.get(key);
+    }
+
+    public synchronized void put(String key, JSONObject bucket) {
+        buckets.put(key, bucket);
+    }
+
+    /**
+     * Drops the buckets of a data type, to be called when its data changes
+     */
+    public synchronized void invalidate(String datatype) {
+        String changedType = datatype.toLowerCase();
+        Iterator<String> keys = buckets.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (QueryCache.isAffected(key.substring(0, key.indexOf('|')), changedType)) {
+                keys.remove();
+            }
+        }
+    }
+}
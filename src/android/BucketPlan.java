@@ -0,0 +1,177 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.time.TimeRangeFilter;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buckets of an aggregated query, either period-based (day, week, month, year) in local time,
+ * or duration-based (minute, hour).
+ * Bucket counts and boundaries are computed arithmetically from the start of the range,
+ * without stepping through the buckets one by one.
+ */
+public class BucketPlan {
+
+    // period-based buckets
+    private final LocalDateTime stLDT;
+    private final LocalDateTime etLDT;
+    private final Period period;
+
+    // duration-based buckets
+    private final Instant st;
+    private final Instant et;
+    private final Duration duration;
+
+    private final long bucketCount;
+
+    private BucketPlan(LocalDateTime stLDT, LocalDateTime etLDT, Period period,
+            Instant st, Instant et, Duration duration) {
+        this.stLDT = stLDT;
+        this.etLDT = etLDT;
+        this.period = period;
+        this.st = st;
+        this.et = et;
+        this.duration = duration;
+        this.bucketCount = period != null ? countPeriods() : countDurations();
+    }
+
+    public static BucketPlan ofPeriod(LocalDateTime stLDT, LocalDateTime etLDT, Period period) {
+        return new BucketPlan(stLDT, etLDT, period, null, null, null);
+    }
+
+    public static BucketPlan ofDuration(Instant st, Instant et, Duration duration) {
+        return new BucketPlan(null, null, null, st, et, duration);
+    }
+
+    public boolean isPeriodBased() {
+        return period != null;
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the number of buckets, the last one may be partial
+     */
+    public long getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * @param i index of the bucket
+     * @return start and end of the bucket, in ms, the end is clipped to the end of the range
+     */
+    public long[] bucketBounds(long i) {
+        if (period != null) {
+            ZoneId zone = ZoneId.systemDefault();
+            LocalDateTime bucketEnd = min(periodStart(i + 1), etLDT);
+            return new long[] { periodStart(i).atZone(zone).toInstant().toEpochMilli(),
+                    bucketEnd.atZone(zone).toInstant().toEpochMilli() };
+        }
+        long bst = st.toEpochMilli() + i * duration.toMillis();
+        return new long[] { bst, Math.min(bst + duration.toMillis(), et.toEpochMilli()) };
+    }
+
+    /**
+     * @return start and end of all buckets, in ms
+     */
+    public List<long[]> bucketBounds() {
+        List<long[]> bounds = new ArrayList<>((int) bucketCount);
+        for (long i = 0; i < bucketCount; i++) {
+            bounds.add(bucketBounds(i));
+        }
+        return bounds;
+    }
+
+    /**
+     * Plan of a subset of the buckets
+     *
+     * @param from index of the first bucket, inclusive
+     * @param to   index of the last bucket, exclusive
+     */
+    public BucketPlan subPlan(long from, long to) {
+        if (period != null) {
+            return ofPeriod(periodStart(from), min(periodStart(to), etLDT), period);
+        }
+        Instant subSt = st.plus(duration.multipliedBy(from));
+        Instant subEt = st.plus(duration.multipliedBy(to));
+        return ofDuration(subSt, subEt.isAfter(et) ? et : subEt, duration);
+    }
+
+    /**
+     * Splits the range into chunks that contain at most a given number of buckets.
+     * Period-based chunks are expressed in local time, as required by Health Connect
+     * to group by period.
+     *
+     * @param bucketsPerChunk max number of buckets in a chunk
+     * @return the time range of each chunk, in order
+     */
+    public List<TimeRangeFilter> chunks(long bucketsPerChunk) {
+        long chunkCount = (bucketCount + bucketsPerChunk - 1) / bucketsPerChunk;
+        List<TimeRangeFilter> chunks = new ArrayList<>((int) Math.max(1, chunkCount));
+        if (chunkCount <= 1) {
+            chunks.add(period != null ? TimeRangeFilter.between(stLDT, etLDT) : TimeRangeFilter.between(st, et));
+            return chunks;
+        }
+        for (long c = 0; c < chunkCount; c++) {
+            BucketPlan chunk = subPlan(c * bucketsPerChunk, Math.min((c + 1) * bucketsPerChunk, bucketCount));
+            chunks.add(period != null ? TimeRangeFilter.between(chunk.stLDT, chunk.etLDT)
+                    : TimeRangeFilter.between(chunk.st, chunk.et));
+        }
+        return chunks;
+    }
+
+    private long countPeriods() {
+        if (!stLDT.isBefore(etLDT)) {
+            return 0;
+        }
+        long whole;
+        if (period.getYears() > 0) {
+            whole = ChronoUnit.YEARS.between(stLDT, etLDT) / period.getYears();
+        } else if (period.getMonths() > 0) {
+            whole = ChronoUnit.MONTHS.between(stLDT, etLDT) / period.getMonths();
+        } else {
+            whole = ChronoUnit.DAYS.between(stLDT, etLDT) / period.getDays();
+        }
+        // the last bucket can be partial
+        return periodStart(whole).isBefore(etLDT) ? whole + 1 : whole;
+    }
+
+    private long countDurations() {
+        long totalMs = et.toEpochMilli() - st.toEpochMilli();
+        if (totalMs <= 0) {
+            return 0;
+        }
+        long bucketMs = duration.toMillis();
+        return (totalMs + bucketMs - 1) / bucketMs;
+    }
+
+    /**
+     * Start of the i-th period-based bucket, computed from the start of the range so that
+     * months of different lengths don't shift the following buckets
+     */
+    private LocalDateTime periodStart(long i) {
+        if (period.getYears() > 0) {
+            return stLDT.plusYears(period.getYears() * i);
+        } else if (period.getMonths() > 0) {
+            return stLDT.plusMonths(period.getMonths() * i);
+        }
+        return stLDT.plusDays(period.getDays() * i);
+    }
+
+    private static LocalDateTime min(LocalDateTime a, LocalDateTime b) {
+        return a.isAfter(b) ? b : a;
+    }
+}
@@ -0,0 +1,38 @@
+package org.apache.cordova.health;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the Health Connect changes tokens, one per data type, across app restarts
+ */
+public class ChangesTokenStore {
+
+    private static final String PREFS_NAME = "cordova-plugin-health.changes";
+
+    private final SharedPreferences prefs;
+
+    public ChangesTokenStore(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param datatype data type as used in JS
+     * @return the last token stored for that data type, null if none
+     */
+    public String get(String datatype) {
+        return prefs.getString(key(datatype), null);
+    }
+
+    public void put(String datatype, String token) {
+        prefs.edit().putString(key(datatype), token).apply();
+    }
+
+    public void remove(String datatype) {
+        prefs.edit().remove(key(datatype)).apply();
+    }
+
+    private static String key(String datatype) {
+        return "token." + datatype.toLowerCase();
+    }
+}
@@ -0,0 +1,175 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the data points returned by a query into a columnar object: one array per field,
+ * all with the same length, instead of one object per data point.
+ * Fields describing where a data point comes from are dictionary-encoded: each distinct combination
+ * is stored once in "sources" and data points only refer to it by index in "source".
+ * Example: { length: 2, startDate: [...], endDate: [...], value: [72, 75], unit: 'bpm', id: [...],
+ * sources: [ { sourceBundleId: 'aaa', entryMethod: 'automatically_recorded' } ], source: [0, 0] }
+ */
+public class ColumnarEncoder {
+
+    public static final String FORMAT_COLUMNAR = "columnar";
+    public static final String FORMAT_BINARY = "binary";
+
+    /**
+     * Fields stored in the table of sources
+     */
+    private static final String[] SOURCE_FIELDS = { "sourceBundleId", "sourceName", "sourceDevice", "entryMethod" };
+
+    /**
+     * Fields that can be packed into the binary buffer, if all their values are numbers
+     */
+    private static final String[] NUMERIC_FIELDS = { "startDate", "endDate", "value" };
+
+    /**
+     * @param points the data points, as returned by a query
+     * @return the columnar object
+     */
+    public static JSONObject encode(JSONArray points) throws JSONException {
+        int length = points.length();
+        Map<String, JSONArray> columns = new LinkedHashMap<>();
+        JSONArray sources = new JSONArray();
+        JSONArray sourceIndexes = new JSONArray();
+        Map<String, Integer> sourceKeys = new HashMap<>();
+
+        for (int i = 0; i < length; i++) {
+            JSONObject point = points.getJSONObject(i);
+
+            StringBuilder sourceKey = new StringBuilder();
+            for (String field : SOURCE_FIELDS) {
+                sourceKey.append(point.optString(field)).append('\u0000');
+            }
+            Integer sourceIndex = sourceKeys.get(sourceKey.toString());
+            if (sourceIndex == null) {
+                JSONObject source = new JSONObject();
+                for (String field : SOURCE_FIELDS) {
+                    if (point.has(field)) {
+                        source.put(field, point.get(field));
+                    }
+                }
+                sourceIndex = sources.length();
+                sourceKeys.put(sourceKey.toString(), sourceIndex);
+                sources.put(source);
+            }
+            sourceIndexes.put(sourceIndex);
+
+            Iterator<String> keys = point.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (isSourceField(key)) {
+                    continue;
+                }
+                JSONArray column = columns.get(key);
+                if (column == null) {
+                    // fields that appear later are missing in the previous data points
+                    column = new JSONArray();
+                    for (int j = 0; j < i; j++) {
+                        column.put(JSONObject.NULL);
+                    }
+                    columns.put(key, column);
+                }
+                column.put(point.get(key));
+            }
+            for (JSONArray column : columns.values()) {
+                if (column.length() <= i) {
+                    column.put(JSONObject.NULL);
+                }
+            }
+        }
+
+        JSONObject columnar = new JSONObject();
+        columnar.put("length", length);
+        for (Map.Entry<String, JSONArray> column : columns.entrySet()) {
+            Object constant = constantValue(column.getValue());
+            // units are usually the same for all data points
+            columnar.put(column.getKey(), column.getKey().equals("unit") && constant != null
+                    ? constant : column.getValue());
+        }
+        columnar.put("sources", sources);
+        columnar.put("source", sourceIndexes);
+        return columnar;
+    }
+
+    /**
+     * Moves the numeric columns of a columnar object into a buffer of 64-bit floats, one column after the other,
+     * which is received in JS as an ArrayBuffer and can be read with Float64Array views.
+     * The names of the packed columns are listed, in order, in the "binary" field of the object.
+     *
+     * @param columnar object returned by encode(), the packed columns are removed from it
+     * @return the buffer
+     */
+    public static byte[] pack(JSONObject columnar) throws JSONException {
+        int length = columnar.getInt("length");
+        List<JSONArray> packed = new ArrayList<>();
+        JSONArray packedNames = new JSONArray();
+        for (String field : NUMERIC_FIELDS) {
+            JSONArray column = columnar.optJSONArray(field);
+            if (column != null && isNumeric(column)) {
+                packed.add(column);
+                packedNames.put(field);
+            }
+        }
+
+        // typed arrays use the byte order of the platform, which is little endian on Android
+        ByteBuffer buffer = ByteBuffer.allocate(packed.size() * length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (JSONArray column : packed) {
+            for (int i = 0; i < length; i++) {
+                buffer.putDouble(column.getDouble(i));
+            }
+        }
+        for (int i = 0; i < packedNames.length(); i++) {
+            columnar.remove(packedNames.getString(i));
+        }
+        columnar.put("binary", packedNames);
+        return buffer.array();
+    }
+
+    private static boolean isSourceField(String key) {
+        for (String field : SOURCE_FIELDS) {
+            if (field.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNumeric(JSONArray column) {
+        for (int i = 0; i < column.length(); i++) {
+            if (!(column.opt(i) instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value shared by all the elements of the array, null if they differ or the array is empty
+     */
+    private static Object constantValue(JSONArray column) {
+        if (column.length() == 0) {
+            return null;
+        }
+        Object first = column.opt(0);
+        for (int i = 1; i < column.length(); i++) {
+            if (!first.equals(column.opt(i))) {
+                return null;
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,98 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.aggregate.AggregationResult;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.request.AggregateGroupByDurationRequest;
+import androidx.health.connect.client.request.AggregateGroupByPeriodRequest;
+import androidx.health.connect.client.request.AggregateRequest;
+import androidx.health.connect.client.time.TimeRangeFilter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.time.Period;
+import java.util.HashSet;
+import java.util.List;
+
+import kotlin.reflect.KClass;
+
+/**
+ * Conversions between JS and Health Connect for one data type, registered in DataTypeRegistry.
+ * Data types that don't support aggregation keep the default implementations, which return null.
+ */
+public abstract class DataTypeHandler {
+
+    private final KClass<? extends Record> recordClass;
+    private final Class<?> recordJavaClass;
+
+    protected DataTypeHandler(KClass<? extends Record> recordClass) {
+        this.recordClass = recordClass;
+        this.recordJavaClass = kotlin.jvm.JvmClassMappingKt.getJavaClass(recordClass);
+    }
+
+    public KClass<? extends Record> getRecordClass() {
+        return recordClass;
+    }
+
+    public Class<?> getRecordJavaClass() {
+        return recordJavaClass;
+    }
+
+    /**
+     * Converts a record returned by a query
+     *
+     * @param datatype    the data type as requested by the user
+     * @param datapoint   the record
+     * @param obj         object to fill, it already contains the metadata
+     * @param resultset   array of results, for data types that add more than one element per record
+     * @param keepSession if true, sleep is returned as sessions
+     * @return true if obj must be added to the results, false if the elements were added to resultset directly
+     */
+    public abstract boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj,
+            JSONArray resultset, boolean keepSession) throws JSONException;
+
+    /**
+     * Converts a sample coming from JS into the records to be inserted
+     *
+     * @param datatype the data type as requested by the user
+     * @param storeObj the sample
+     * @param st       start of the sample, in ms
+     * @param et       end of the sample, in ms
+     * @param data     list where the records are added
+     */
+    public abstract void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et,
+            List<Record> data) throws JSONException;
+
+    /**
+     * @return the request, or null if the data type can't be aggregated
+     */
+    public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+            HashSet<DataOrigin> dor) {
+        return null;
+    }
+
+    /**
+     * @return the request, or null if the data type can't be aggregated
+     */
+    public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+            TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+        return null;
+    }
+
+    /**
+     * @return the request, or null if the data type can't be aggregated
+     */
+    public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+            TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+        return null;
+    }
+
+    /**
+     * Fills the value and the unit of an aggregated result
+     */
+    public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj) throws JSONException {
+    }
+}
@@ -0,0 +1,877 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.aggregate.AggregateMetric;
+import androidx.health.connect.client.aggregate.AggregationResult;
+import androidx.health.connect.client.records.ActiveCaloriesBurnedRecord;
+import androidx.health.connect.client.records.BasalMetabolicRateRecord;
+import androidx.health.connect.client.records.BodyFatRecord;
+import androidx.health.connect.client.records.DistanceRecord;
+import androidx.health.connect.client.records.ExerciseLap;
+import androidx.health.connect.client.records.ExerciseSegment;
+import androidx.health.connect.client.records.ExerciseSessionRecord;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.TotalCaloriesBurnedRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.records.metadata.Metadata;
+import androidx.health.connect.client.request.AggregateGroupByDurationRequest;
+import androidx.health.connect.client.request.AggregateGroupByPeriodRequest;
+import androidx.health.connect.client.request.AggregateRequest;
+import androidx.health.connect.client.time.TimeRangeFilter;
+import androidx.health.connect.client.units.Energy;
+import androidx.health.connect.client.units.Length;
+import androidx.health.connect.client.units.Percentage;
+import androidx.health.connect.client.units.Power;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.Period;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import kotlin.reflect.KClass;
+
+/**
+ * Maps data types, as named in JS, and Health Connect record classes to their handlers.
+ * DATA_TYPES: to support a new data type, register its handler here.
+ */
+public class DataTypeRegistry {
+
+    private static final Map<String, DataTypeHandler> byName = new HashMap<>();
+
+    private static final Map<Class<?>, DataTypeHandler> byRecordClass = new HashMap<>();
+
+    /**
+     * Handles all the nutrition.X data types, which share the NutritionRecord with nutrition
+     */
+    private static final DataTypeHandler NUTRITION_X = new DataTypeHandler(NutritionXFunctions.dataTypeToClass()) {
+        @Override
+        public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                boolean keepSession) throws JSONException {
+            NutritionXFunctions.populateFromQuery(datatype, datapoint, obj);
+            return true;
+        }
+
+        @Override
+        public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                throws JSONException {
+            NutritionXFunctions.prepareStoreRecords(datatype, storeObj, st, et, data);
+        }
+
+        @Override
+        public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                HashSet<DataOrigin> dor) {
+            return NutritionXFunctions.prepareAggregateRequest(datatype, timeRange, dor);
+        }
+
+        @Override
+        public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+            return NutritionXFunctions.prepareAggregateGroupByPeriodRequest(datatype, timeRange, period, dor);
+        }
+
+        @Override
+        public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+            return NutritionXFunctions.prepareAggregateGroupByDurationRequest(datatype, timeRange, duration, dor);
+        }
+
+        @Override
+        public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj) throws JSONException {
+            NutritionXFunctions.populateFromAggregatedQuery(response, retObj);
+        }
+    };
+
+    /**
+     * Handles sleep queried with compactStages, it is not registered by name
+     */
+    public static final DataTypeHandler SLEEP_COMPACT = new DataTypeHandler(SleepFunctions.dataTypeToClass()) {
+        @Override
+        public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                boolean keepSession) throws JSONException {
+            SleepFunctions.populateCompactFromQuery(datapoint, obj);
+            return true;
+        }
+
+        @Override
+        public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                throws JSONException {
+            SleepFunctions.prepareStoreRecords(storeObj, data);
+        }
+    };
+
+    static {
+        register("steps", new DataTypeHandler(StepsFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                StepsFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                StepsFunctions.prepareStoreRecords(storeObj, st, et, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return StepsFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return StepsFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return StepsFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                StepsFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("stairs", new DataTypeHandler(StairsFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                StairsFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                StairsFunctions.prepareStoreRecords(storeObj, st, et, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return StairsFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return StairsFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return StairsFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                StairsFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("weight", new DataTypeHandler(WeightFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                WeightFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                WeightFunctions.prepareStoreRecords(storeObj, st, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return WeightFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return WeightFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return WeightFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                WeightFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("height", new DataTypeHandler(HeightFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                HeightFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                HeightFunctions.prepareStoreRecords(storeObj, st, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return HeightFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return HeightFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return HeightFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                HeightFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("fat_percentage", new DataTypeHandler(
+                kotlin.jvm.JvmClassMappingKt.getKotlinClass(BodyFatRecord.class)) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                BodyFatRecord bodyFatDP = (BodyFatRecord) datapoint;
+                obj.put("startDate", bodyFatDP.getTime().toEpochMilli());
+                obj.put("endDate", bodyFatDP.getTime().toEpochMilli());
+
+                double perc = bodyFatDP.getPercentage().getValue();
+                obj.put("value", perc);
+                obj.put("unit", "%");
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                double perc = storeObj.getDouble("value");
+
+                BodyFatRecord record = new BodyFatRecord(
+                        Instant.ofEpochMilli(st), null,
+                        new Percentage(perc),
+                        Metadata.manualEntry());
+                data.add(record);
+            }
+        });
+
+        register("activity", new DataTypeHandler(
+                kotlin.jvm.JvmClassMappingKt.getKotlinClass(ExerciseSessionRecord.class)) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                ExerciseSessionRecord activityDP = (ExerciseSessionRecord) datapoint;
+                obj.put("startDate", activityDP.getStartTime().toEpochMilli());
+                obj.put("endDate", activityDP.getEndTime().toEpochMilli());
+
+                int exType = activityDP.getExerciseType();
+                String activityStr = ActivityMapper.activityFromExerciseType(exType);
+
+                obj.put("value", activityStr);
+                obj.put("unit", "activityType");
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                String activityStr = storeObj.getString("value");
+                int exerciseType = ActivityMapper.exerciseTypeFromActivity(activityStr);
+                String title = null;
+                String notes = null;
+                List<ExerciseSegment> segments = new LinkedList<>();
+                List<ExerciseLap> laps = new LinkedList<>();
+
+                ExerciseSessionRecord record = new ExerciseSessionRecord(
+                        Instant.ofEpochMilli(st), null,
+                        Instant.ofEpochMilli(et), null,
+                        Metadata.manualEntry(),
+                        exerciseType,
+                        title, notes,
+                        segments, laps);
+                data.add(record);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return new AggregateRequest(durationMetrics(), timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return new AggregateGroupByPeriodRequest(durationMetrics(), timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return new AggregateGroupByDurationRequest(durationMetrics(), timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                Duration val = response.get(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
+                if (val != null) {
+                    long millis = val.getSeconds() * 1000;
+                    retObj.put("value", millis);
+                    retObj.put("unit", "ms");
+                } else {
+                    retObj.put("value", 0);
+                    retObj.put("unit", "ms");
+                }
+            }
+
+            private Set<AggregateMetric<Duration>> durationMetrics() {
+                Set<AggregateMetric<Duration>> metrics = new HashSet<>();
+                metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
+                return metrics;
+            }
+        });
+
+        register("calories", new EnergyHandler(
+                kotlin.jvm.JvmClassMappingKt.getKotlinClass(TotalCaloriesBurnedRecord.class),
+                TotalCaloriesBurnedRecord.ENERGY_TOTAL) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                TotalCaloriesBurnedRecord caloriesDP = (TotalCaloriesBurnedRecord) datapoint;
+                obj.put("startDate", caloriesDP.getStartTime().toEpochMilli());
+                obj.put("endDate", caloriesDP.getEndTime().toEpochMilli());
+
+                double kcals = caloriesDP.getEnergy().getKilocalories();
+
+                obj.put("value", kcals);
+                obj.put("unit", "kcal");
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                double kcals = storeObj.getDouble("value");
+
+                TotalCaloriesBurnedRecord record = new TotalCaloriesBurnedRecord(
+                        Instant.ofEpochMilli(st), null,
+                        Instant.ofEpochMilli(et), null,
+                        Energy.kilocalories(kcals),
+                        Metadata.manualEntry());
+                data.add(record);
+            }
+        });
+
+        register("calories.active", new EnergyHandler(
+                kotlin.jvm.JvmClassMappingKt.getKotlinClass(ActiveCaloriesBurnedRecord.class),
+                ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                ActiveCaloriesBurnedRecord caloriesDP = (ActiveCaloriesBurnedRecord) datapoint;
+                obj.put("startDate", caloriesDP.getStartTime().toEpochMilli());
+                obj.put("endDate", caloriesDP.getEndTime().toEpochMilli());
+
+                double kcals = caloriesDP.getEnergy().getKilocalories();
+
+                obj.put("value", kcals);
+                obj.put("unit", "kcal");
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                double kcals = storeObj.getDouble("value");
+
+                ActiveCaloriesBurnedRecord record = new ActiveCaloriesBurnedRecord(
+                        Instant.ofEpochMilli(st), null,
+                        Instant.ofEpochMilli(et), null,
+                        Energy.kilocalories(kcals),
+                        Metadata.manualEntry());
+                data.add(record);
+            }
+        });
+
+        register("calories.basal", new EnergyHandler(
+                kotlin.jvm.JvmClassMappingKt.getKotlinClass(BasalMetabolicRateRecord.class),
+                BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                BasalMetabolicRateRecord basalRateDP = (BasalMetabolicRateRecord) datapoint;
+                obj.put("startDate", basalRateDP.getTime().toEpochMilli());
+                obj.put("endDate", basalRateDP.getTime().toEpochMilli());
+
+                Power pow = basalRateDP.getBasalMetabolicRate();
+                obj.put("value", pow.getKilocaloriesPerDay());
+                obj.put("unit", "kcal/day");
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                double kcals = storeObj.getDouble("value");
+                // convert kcals to power
+                double ms = (et - st);
+                double kcalsDay = kcals / (ms / (double) (86400000));
+                Power pow = Power.kilocaloriesPerDay(kcalsDay);
+
+                BasalMetabolicRateRecord record = new BasalMetabolicRateRecord(
+                        Instant.ofEpochMilli(st), null,
+                        pow,
+                        Metadata.manualEntry());
+                data.add(record);
+            }
+        });
+
+        register("blood_glucose", new DataTypeHandler(BloodGlucoseFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                BloodGlucoseFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                JSONObject glucoseobj = storeObj.getJSONObject("value");
+                BloodGlucoseFunctions.prepareStoreRecords(glucoseobj, st, data);
+            }
+        });
+
+        register("blood_pressure", new DataTypeHandler(BloodPressureFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                BloodPressureFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                JSONObject pressureobj = storeObj.getJSONObject("value");
+                BloodPressureFunctions.prepareStoreRecords(pressureobj, st, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return BloodPressureFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return BloodPressureFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return BloodPressureFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                BloodPressureFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("distance", new DataTypeHandler(kotlin.jvm.JvmClassMappingKt.getKotlinClass(DistanceRecord.class)) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                DistanceRecord disanceR = (DistanceRecord) datapoint;
+                obj.put("startDate", disanceR.getStartTime().toEpochMilli());
+                obj.put("endDate", disanceR.getEndTime().toEpochMilli());
+
+                double meters = disanceR.getDistance().getMeters();
+                obj.put("value", meters);
+                obj.put("unit", "m");
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                double meters = storeObj.getDouble("value");
+                Length len = Length.meters(meters);
+
+                DistanceRecord record = new DistanceRecord(
+                        Instant.ofEpochMilli(st), null,
+                        Instant.ofEpochMilli(et), null,
+                        len,
+                        Metadata.manualEntry());
+
+                data.add(record);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return new AggregateRequest(lengthMetrics(), timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return new AggregateGroupByPeriodRequest(lengthMetrics(), timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return new AggregateGroupByDurationRequest(lengthMetrics(), timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                if (response.get(DistanceRecord.DISTANCE_TOTAL) != null) {
+                    double meters = response.get(DistanceRecord.DISTANCE_TOTAL).getMeters();
+                    retObj.put("value", meters);
+                    retObj.put("unit", "m");
+                } else {
+                    retObj.put("value", 0);
+                    retObj.put("unit", "kcal");
+                }
+            }
+
+            private Set<AggregateMetric<Length>> lengthMetrics() {
+                Set<AggregateMetric<Length>> metrics = new HashSet<>();
+                metrics.add(DistanceRecord.DISTANCE_TOTAL);
+                return metrics;
+            }
+        });
+
+        register("heart_rate", new DataTypeHandler(HeartRateFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                // bpms are sent individually
+                HeartRateFunctions.populateFromQuery(datapoint, resultset);
+                return false;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                HeartRateFunctions.prepareStoreRecords(storeObj, st, et, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return HeartRateFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return HeartRateFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return HeartRateFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                HeartRateFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("heart_rate.resting", new DataTypeHandler(HeartRateFunctions.restingDataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                HeartRateFunctions.populateRestingFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                HeartRateFunctions.prepareRestingStoreRecords(storeObj, st, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return HeartRateFunctions.prepareRestingAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return HeartRateFunctions.prepareRestingAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return HeartRateFunctions.prepareRestingAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                HeartRateFunctions.populateRestingFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("heart_rate.variability", new DataTypeHandler(HeartRateFunctions.variabilityDataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                HeartRateFunctions.populateVariabilityFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                HeartRateFunctions.prepareVariabilityStoreRecords(storeObj, st, data);
+            }
+        });
+
+        register("nutrition", new DataTypeHandler(NutritionFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                NutritionFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                NutritionFunctions.prepareStoreRecords(storeObj, st, et, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return NutritionFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return NutritionFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return NutritionFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                NutritionFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("nutrition.water", new DataTypeHandler(HydrationFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                HydrationFunctions.populateFromQuery(datapoint, obj);
+                return true;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                HydrationFunctions.prepareStoreRecords(storeObj, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return HydrationFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return HydrationFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return HydrationFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                HydrationFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+
+        register("sleep", new DataTypeHandler(SleepFunctions.dataTypeToClass()) {
+            @Override
+            public boolean populateFromQuery(String datatype, Record datapoint, JSONObject obj, JSONArray resultset,
+                    boolean keepSession) throws JSONException {
+                SleepFunctions.populateFromQuery(datapoint, obj, resultset, keepSession);
+                // stages are added individually, unless the session is kept
+                return keepSession;
+            }
+
+            @Override
+            public void prepareStoreRecords(String datatype, JSONObject storeObj, long st, long et, List<Record> data)
+                    throws JSONException {
+                SleepFunctions.prepareStoreRecords(storeObj, data);
+            }
+
+            @Override
+            public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                    HashSet<DataOrigin> dor) {
+                return SleepFunctions.prepareAggregateRequest(timeRange, dor);
+            }
+
+            @Override
+            public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                    TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+                return SleepFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
+            }
+
+            @Override
+            public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                    TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+                return SleepFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+            }
+
+            @Override
+            public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj)
+                    throws JSONException {
+                SleepFunctions.populateFromAggregatedQuery(response, retObj);
+            }
+        });
+    }
+
+    /**
+     * Handler of the data types that are aggregated as the total of an energy metric, in kcal
+     */
+    private abstract static class EnergyHandler extends DataTypeHandler {
+        private final AggregateMetric<Energy> metric;
+
+        EnergyHandler(KClass<? extends Record> recordClass, AggregateMetric<Energy> metric) {
+            super(recordClass);
+            this.metric = metric;
+        }
+
+        @Override
+        public AggregateRequest prepareAggregateRequest(String datatype, TimeRangeFilter timeRange,
+                HashSet<DataOrigin> dor) {
+            return new AggregateRequest(metrics(), timeRange, dor);
+        }
+
+        @Override
+        public AggregateGroupByPeriodRequest prepareAggregateGroupByPeriodRequest(String datatype,
+                TimeRangeFilter timeRange, Period period, HashSet<DataOrigin> dor) {
+            return new AggregateGroupByPeriodRequest(metrics(), timeRange, period, dor);
+        }
+
+        @Override
+        public AggregateGroupByDurationRequest prepareAggregateGroupByDurationRequest(String datatype,
+                TimeRangeFilter timeRange, Duration duration, HashSet<DataOrigin> dor) {
+            return new AggregateGroupByDurationRequest(metrics(), timeRange, duration, dor);
+        }
+
+        @Override
+        public void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj) throws JSONException {
+            if (response.get(metric) != null) {
+                double kcals = response.get(metric).getKilocalories();
+                retObj.put("value", kcals);
+                retObj.put("unit", "kcal");
+            } else {
+                retObj.put("value", 0);
+                retObj.put("unit", "kcal");
+            }
+        }
+
+        private Set<AggregateMetric<Energy>> metrics() {
+            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
+            metrics.add(metric);
+            return metrics;
+        }
+    }
+
+    private static void register(String datatype, DataTypeHandler handler) {
+        byName.put(datatype, handler);
+        // the first data type registered for a record class is the one used to convert its records
+        if (!byRecordClass.containsKey(handler.getRecordJavaClass())) {
+            byRecordClass.put(handler.getRecordJavaClass(), handler);
+        }
+    }
+
+    /**
+     * @param datatype data type as used in JS, in any case
+     * @return the handler, or null if the data type is not supported
+     */
+    public static DataTypeHandler forName(String datatype) {
+        String name = datatype.toLowerCase();
+        DataTypeHandler handler = byName.get(name);
+        if (handler == null && name.startsWith("nutrition.")) {
+            return NUTRITION_X;
+        }
+        return handler;
+    }
+
+    /**
+     * @return the handler of the data type a record belongs to, or null if the record is not supported
+     */
+    public static DataTypeHandler forRecord(Record record) {
+        return byRecordClass.get(record.getClass());
+    }
+}
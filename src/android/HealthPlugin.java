@@ -18,42 +18,31 @@ import androidx.health.connect.client.aggregate.AggregateMetric;
 import androidx.health.connect.client.aggregate.AggregationResult;
 import androidx.health.connect.client.aggregate.AggregationResultGroupedByDuration;
 import androidx.health.connect.client.aggregate.AggregationResultGroupedByPeriod;
+import androidx.health.connect.client.changes.Change;
+import androidx.health.connect.client.changes.DeletionChange;
+import androidx.health.connect.client.changes.UpsertionChange;
 import androidx.health.connect.client.permission.HealthPermission;
 import androidx.health.connect.client.records.ActiveCaloriesBurnedRecord;
-import androidx.health.connect.client.records.BasalMetabolicRateRecord;
-import androidx.health.connect.client.records.BloodGlucoseRecord;
-import androidx.health.connect.client.records.BloodPressureRecord;
-import androidx.health.connect.client.records.NutritionRecord;
-import androidx.health.connect.client.records.BodyFatRecord;
 import androidx.health.connect.client.records.DistanceRecord;
-import androidx.health.connect.client.records.ExerciseLap;
-import androidx.health.connect.client.records.ExerciseSegment;
-import androidx.health.connect.client.records.ExerciseSessionRecord;
-import androidx.health.connect.client.records.FloorsClimbedRecord;
 import androidx.health.connect.client.records.HeartRateRecord;
-import androidx.health.connect.client.records.HeartRateVariabilityRmssdRecord;
-import androidx.health.connect.client.records.HeightRecord;
-import androidx.health.connect.client.records.HydrationRecord;
+import androidx.health.connect.client.records.InstantRecord;
+import androidx.health.connect.client.records.IntervalRecord;
 import androidx.health.connect.client.records.Record;
-import androidx.health.connect.client.records.RestingHeartRateRecord;
 import androidx.health.connect.client.records.SleepSessionRecord;
-import androidx.health.connect.client.records.StepsRecord;
-import androidx.health.connect.client.records.TotalCaloriesBurnedRecord;
-import androidx.health.connect.client.records.WeightRecord;
 import androidx.health.connect.client.records.metadata.DataOrigin;
 import androidx.health.connect.client.records.metadata.Device;
 import androidx.health.connect.client.records.metadata.Metadata;
 import androidx.health.connect.client.request.AggregateGroupByDurationRequest;
 import androidx.health.connect.client.request.AggregateGroupByPeriodRequest;
 import androidx.health.connect.client.request.AggregateRequest;
+import androidx.health.connect.client.request.ChangesTokenRequest;
 import androidx.health.connect.client.request.ReadRecordsRequest;
+import androidx.health.connect.client.response.ChangesResponse;
 import androidx.health.connect.client.response.InsertRecordsResponse;
 import androidx.health.connect.client.response.ReadRecordsResponse;
 import androidx.health.connect.client.time.TimeRangeFilter;
 import androidx.health.connect.client.units.Energy;
 import androidx.health.connect.client.units.Length;
-import androidx.health.connect.client.units.Percentage;
-import androidx.health.connect.client.units.Power;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
@@ -65,6 +54,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.time.DayOfWeek;
 import java.time.Duration;
 import java.time.Instant;
@@ -73,14 +63,40 @@ import java.time.Period;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import kotlin.Unit;
+import kotlin.coroutines.Continuation;
 import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.jvm.functions.Function2;
 import kotlin.reflect.KClass;
-import kotlinx.coroutines.BuildersKt;
+import kotlinx.coroutines.CoroutineScope;
+import kotlinx.coroutines.CoroutineScopeKt;
+import kotlinx.coroutines.CoroutineStart;
+import kotlinx.coroutines.ExecutorsKt;
+import kotlinx.coroutines.SupervisorKt;
+import kotlinx.coroutines.future.FutureKt;
 
 public class HealthPlugin extends CordovaPlugin {
 
@@ -90,10 +106,68 @@ public class HealthPlugin extends CordovaPlugin {
     public static String TAG = "cordova-plugin-health";
 
     /**
-     * Callback context, reference needed when used in functions initialized before
-     * the plugin is called
+     * Max number of reads (time slices of a parallel query, or queries of a batch)
+     * in flight at the same time
+     */
+    private static final int MAX_PARALLEL_READS = 4;
+
+    /**
+     * Max number of pages a slice of a parallel query reads ahead while the previous slices are handed over
+     */
+    private static final int MAX_SLICE_PAGES_AHEAD = 2;
+
+    /**
+     * Number of threads used to run the calls to Health Connect and to convert their results
+     */
+    private static final int HEALTH_CONNECT_THREADS = 4;
+
+    /**
+     * Default max age of the cached results of a query, in ms
+     */
+    private static final long DEFAULT_CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Max number of records inserted with one call to Health Connect
+     */
+    private static final int STORE_BATCH_SIZE = 1000;
+
+    /**
+     * Number of queued samples that triggers a flush of the store queue
+     */
+    private static final int STORE_QUEUE_FLUSH_SIZE = 500;
+
+    /**
+     * Max time a sample waits in the store queue before being flushed, in ms
+     */
+    private static final long STORE_QUEUE_FLUSH_DELAY = 10 * 1000;
+
+    /**
+     * Max delay before flushing again a store queue that could not be flushed, in ms.
+     * The delay starts from STORE_QUEUE_FLUSH_DELAY and doubles after each failure.
+     */
+    private static final long STORE_QUEUE_MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+    /**
+     * Max number of ids deleted with one call to Health Connect
+     */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    /**
+     * Calls that have not been answered yet, by callback ID. Each call carries its own
+     * callback context, so that concurrent calls don't answer each other's promises
+     */
+    private final Map<String, CallbackContext> inFlightCalls = new ConcurrentHashMap<>();
+
+    /**
+     * ID of the call waiting for the result of the permissions request, reference needed
+     * because the result is delivered to the launcher registered when the plugin is initialized
+     */
+    private final AtomicReference<String> authorizationCallId = new AtomicReference<>();
+
+    /**
+     * Permissions granted to the app, null if they need to be read from Health Connect
      */
-    private CallbackContext callbackContext;
+    private final AtomicReference<Set<String>> grantedPermissionsCache = new AtomicReference<>(null);
 
     /**
      * API client
@@ -105,6 +179,47 @@ public class HealthPlugin extends CordovaPlugin {
      */
     ActivityResultLauncher permissionsLauncher;
 
+    /**
+     * Threads on which Health Connect calls are dispatched, owned by the plugin so that
+     * the Cordova thread pool shared with other plugins is not used
+     */
+    private ExecutorService healthConnectExecutor;
+
+    /**
+     * Scope of all coroutines launched by the plugin, cancelled when the plugin is destroyed
+     */
+    private CoroutineScope pluginScope;
+
+    /**
+     * Last changes token of each data type, used for incremental syncs
+     */
+    private ChangesTokenStore changesTokenStore;
+
+    /**
+     * Converted data points of the queries that opt in for caching
+     */
+    private final QueryCache queryCache = new QueryCache();
+
+    /**
+     * Closed buckets of the aggregated queries that opt in for caching
+     */
+    private final AggregateCache aggregateCache = new AggregateCache();
+
+    /**
+     * Samples stored with storeQueued(), waiting to be inserted
+     */
+    private StoreQueue storeQueue;
+
+    /**
+     * Single thread where the store queue is filled and flushed, also used to schedule timed flushes
+     */
+    private ScheduledExecutorService storeQueueExecutor;
+
+    // only accessed from the store queue thread
+    private ScheduledFuture<?> scheduledStoreQueueFlush;
+    private CompletableFuture<JSONObject> lastStoreQueueFlush = CompletableFuture.completedFuture(null);
+    private long storeQueueRetryDelay = STORE_QUEUE_FLUSH_DELAY;
+
     /**
      * Constructor
      */
@@ -115,6 +230,22 @@ public class HealthPlugin extends CordovaPlugin {
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
 
+        healthConnectExecutor = Executors.newFixedThreadPool(HEALTH_CONNECT_THREADS);
+        // supervisor job: a failing call must not cancel the other ones
+        pluginScope = CoroutineScopeKt.CoroutineScope(
+                SupervisorKt.SupervisorJob(null).plus(ExecutorsKt.from(healthConnectExecutor)));
+        changesTokenStore = new ChangesTokenStore(cordova.getContext());
+
+        storeQueue = new StoreQueue(new File(cordova.getContext().getFilesDir(), "cordova-plugin-health-queue.jsonl"));
+        storeQueueExecutor = Executors.newSingleThreadScheduledExecutor();
+        storeQueueExecutor.execute(() -> {
+            // samples left by a previous process are flushed as soon as possible
+            storeQueue.load();
+            if (storeQueue.size() > 0) {
+                scheduleStoreQueueFlush();
+            }
+        });
+
         ActivityResultContract<Set<String>, Set<String>> requestPermissionActivityContract = PermissionController
                 .createRequestPermissionResultContract();
         permissionsLauncher = cordova.getActivity().registerForActivityResult(requestPermissionActivityContract,
@@ -122,6 +253,9 @@ public class HealthPlugin extends CordovaPlugin {
                     @Override
                     public void onActivityResult(Set<String> result) {
                         Log.d(TAG, "got results from authorization request");
+                        refreshGrantedPermissions();
+                        String callId = authorizationCallId.getAndSet(null);
+                        CallbackContext callbackContext = callId != null ? inFlightCalls.remove(callId) : null;
                         if (callbackContext != null) {
                             for (String res : result) {
                                 LOG.d(TAG, res);
@@ -138,6 +272,35 @@ public class HealthPlugin extends CordovaPlugin {
                 });
     }
 
+    @Override
+    public void onResume(boolean multitasking) {
+        // permissions may have been changed in the settings while the app was in the background
+        refreshGrantedPermissions();
+        super.onResume(multitasking);
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        // the app may not come back, flush what has been queued so far
+        storeQueueExecutor.execute(this::flushStoreQueue);
+        super.onPause(multitasking);
+    }
+
+    @Override
+    public void onDestroy() {
+        // samples that have not been stored yet remain in the journal
+        storeQueueExecutor.shutdownNow();
+        CoroutineScopeKt.cancel(pluginScope, null);
+        for (CallbackContext callbackContext : inFlightCalls.values()) {
+            if (!callbackContext.isFinished()) {
+                callbackContext.error("Plugin destroyed before the call completed");
+            }
+        }
+        inFlightCalls.clear();
+        healthConnectExecutor.shutdown();
+        super.onDestroy();
+    }
+
     /**
      * Executes the request.
      *
@@ -148,7 +311,6 @@ public class HealthPlugin extends CordovaPlugin {
      * @return whether the action was valid.
      */
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) {
-        this.callbackContext = callbackContext;
         if (action.equals("isAvailable")) {
             int availabilityStatus = HealthConnectClient.getSdkStatus(this.cordova.getContext());
             if (availabilityStatus == HealthConnectClient.SDK_UNAVAILABLE) {
@@ -191,65 +353,112 @@ public class HealthPlugin extends CordovaPlugin {
             } catch (Exception ex) {
                 callbackContext.error(ex.getMessage());
             }
+        } else if ("getActivityTypes".equals(action)) {
+            try {
+                callbackContext.success(ActivityMapper.activityTypes());
+            } catch (JSONException ex) {
+                callbackContext.error(ex.getMessage());
+            }
         } else if ("isAuthorized".equals(action)) {
-            cordova.getThreadPool().execute(() -> {
-                try {
-                    connectAPI();
-                    checkAuthorization(args, false);
-                } catch (Exception ex) {
-                    callbackContext.error(ex.getMessage());
-                }
-            });
+            // Health Connect calls are launched in the plugin scope and don't block this thread
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                checkAuthorization(args, false, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
             return true;
         } else if ("requestAuthorization".equals(action)) {
-            cordova.getThreadPool().execute(() -> {
-                try {
-                    connectAPI();
-                    checkAuthorization(args, true);
-                } catch (Exception ex) {
-                    callbackContext.error(ex.getMessage());
-                }
-            });
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                checkAuthorization(args, true, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
             return true;
         } else if ("query".equals(action)) {
-            cordova.getThreadPool().execute(() -> {
-                try {
-                    connectAPI();
-                    query(args);
-                } catch (Exception ex) {
-                    callbackContext.error(ex.getMessage());
-                }
-            });
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                query(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
+            return true;
+        } else if ("queryBatch".equals(action)) {
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                queryBatch(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
             return true;
         } else if ("queryAggregated".equals(action)) {
-            cordova.getThreadPool().execute(() -> {
-                try {
-                    connectAPI();
-                    queryAggregated(args);
-                } catch (Exception ex) {
-                    callbackContext.error(ex.getMessage());
-                }
-            });
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                queryAggregated(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
             return true;
         } else if ("store".equals(action)) {
-            cordova.getThreadPool().execute(() -> {
-                try {
-                    connectAPI();
-                    store(args);
-                } catch (Exception ex) {
-                    callbackContext.error(ex.getMessage());
-                }
-            });
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                store(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
+            return true;
+        } else if ("storeBatch".equals(action)) {
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                storeBatch(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
+            return true;
+        } else if ("storeQueued".equals(action)) {
+            trackCall(callbackContext);
+            storeQueued(args, callbackContext);
+            return true;
+        } else if ("flushStoreQueue".equals(action)) {
+            trackCall(callbackContext);
+            storeQueueExecutor.execute(() -> flushStoreQueue()
+                    .thenAccept(callbackContext::success)
+                    .exceptionally(ex -> sendAsyncError(callbackContext, ex)));
             return true;
         } else if ("delete".equals(action)) {
-            cordova.getThreadPool().execute(() -> {
-                try {
-                    connectAPI();
-                    delete(args);
-                } catch (Exception ex) {
-                    callbackContext.error(ex.getMessage());
-                }
-            });
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                delete(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
+            return true;
+        } else if ("getChangesToken".equals(action)) {
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                getChangesToken(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
+            return true;
+        } else if ("getChanges".equals(action)) {
+            trackCall(callbackContext);
+            try {
+                connectAPI();
+                getChanges(args, callbackContext);
+            } catch (Exception ex) {
+                callbackContext.error(ex.getMessage());
+            }
             return true;
         } else {
             // Unsupported action
@@ -258,6 +467,16 @@ public class HealthPlugin extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * Adds a call to the registry of calls in flight, forgetting the ones that have been answered
+     *
+     * @param callbackContext callback context of the call
+     */
+    private void trackCall(CallbackContext callbackContext) {
+        inFlightCalls.values().removeIf(CallbackContext::isFinished);
+        inFlightCalls.put(callbackContext.getCallbackId(), callbackContext);
+    }
+
     /**
      * Connects to the HealthConnect API
      */
@@ -267,67 +486,132 @@ public class HealthPlugin extends CordovaPlugin {
         }
     }
 
-    // DATA_TYPE add here when supporting new ones
-    private KClass<? extends androidx.health.connect.client.records.Record> dataTypeNameToClass(String name) {
-        if (name.equalsIgnoreCase("steps")) {
-            return StepsFunctions.dataTypeToClass();
-        }
-        if (name.equalsIgnoreCase("stairs")) {
-            return StairsFunctions.dataTypeToClass();
-        }
-        if (name.equalsIgnoreCase("weight")) {
-            return WeightFunctions.dataTypeToClass();
-        }
-        if (name.equalsIgnoreCase("fat_percentage")) {
-            return kotlin.jvm.JvmClassMappingKt.getKotlinClass(BodyFatRecord.class);
-        }
-        if (name.equalsIgnoreCase("activity")) {
-            return kotlin.jvm.JvmClassMappingKt.getKotlinClass(ExerciseSessionRecord.class);
-        }
-        if (name.equalsIgnoreCase("calories")) {
-            return kotlin.jvm.JvmClassMappingKt.getKotlinClass(TotalCaloriesBurnedRecord.class);
-        }
-        if (name.equalsIgnoreCase("calories.active")) {
-            return kotlin.jvm.JvmClassMappingKt.getKotlinClass(ActiveCaloriesBurnedRecord.class);
-        }
-        if (name.equalsIgnoreCase("calories.basal")) {
-            return kotlin.jvm.JvmClassMappingKt.getKotlinClass(BasalMetabolicRateRecord.class);
-        }
-        if (name.equalsIgnoreCase("blood_glucose")) {
-            return BloodGlucoseFunctions.dataTypeToClass();
-        }
-        if (name.equalsIgnoreCase("blood_pressure")) {
-            return BloodPressureFunctions.dataTypeToClass();
-        }
-        if (name.equalsIgnoreCase("distance")) {
-            return kotlin.jvm.JvmClassMappingKt.getKotlinClass(DistanceRecord.class);
-        }
-        if (name.equalsIgnoreCase("heart_rate.resting")) {
-            return HeartRateFunctions.restingDataTypeToClass();
+    /**
+     * Launches a suspending call to Health Connect in the plugin scope, without blocking the calling thread
+     * see https://kt.academy/article/cc-other-languages
+     *
+     * @param call the suspending call, for example (s, c) -> healthConnectClient.readRecords(request, c)
+     * @return a future that completes with the result of the call
+     */
+    private <T> CompletableFuture<T> launch(Function2<? super CoroutineScope, ? super Continuation<? super T>, ?> call) {
+        CompletableFuture<T> future = FutureKt.future(pluginScope, EmptyCoroutineContext.INSTANCE,
+                CoroutineStart.DEFAULT, call);
+        future.whenComplete((res, ex) -> {
+            // a permission may have been revoked in the meantime
+            if (ex instanceof SecurityException || (ex != null && ex.getCause() instanceof SecurityException)) {
+                grantedPermissionsCache.set(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Gets the permissions granted to the app, from the cache if available
+     *
+     * @return a future that completes with the granted permissions
+     */
+    private CompletableFuture<Set<String>> getGrantedPermissions() {
+        Set<String> cached = grantedPermissionsCache.get();
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
-        if (name.equalsIgnoreCase("heart_rate.variability")) {
-            return HeartRateFunctions.variabilityDataTypeToClass();
+        CompletableFuture<Set<String>> granted = launch(
+                (s, c) -> healthConnectClient.getPermissionController().getGrantedPermissions(c));
+        return granted.thenApply(grantedPermissions -> {
+            Set<String> copy = Collections.unmodifiableSet(new HashSet<>(grantedPermissions));
+            grantedPermissionsCache.set(copy);
+            return copy;
+        });
+    }
+
+    /**
+     * Drops the cached permissions and, if connected, reads them again in the background
+     */
+    private void refreshGrantedPermissions() {
+        grantedPermissionsCache.set(null);
+        if (healthConnectClient != null) {
+            getGrantedPermissions().exceptionally(ex -> {
+                Log.e(TAG, "Could not refresh granted permissions", ex);
+                return null;
+            });
         }
-        if (name.equalsIgnoreCase("height")) {
-            return HeightFunctions.dataTypeToClass();
+    }
+
+    /**
+     * Runs asynchronous tasks keeping at most parallelism of them in flight at the same time
+     *
+     * @param tasks       the tasks, each one starts an asynchronous operation when invoked
+     * @param parallelism max number of tasks running at the same time
+     * @return the futures of the tasks, in the same order as the tasks
+     */
+    private static <T> List<CompletableFuture<T>> runBounded(List<Supplier<CompletableFuture<T>>> tasks,
+            int parallelism) {
+        List<CompletableFuture<T>> results = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            results.add(new CompletableFuture<>());
         }
-        if (name.equalsIgnoreCase("nutrition")) {
-            return NutritionFunctions.dataTypeToClass();
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(parallelism, tasks.size()); i++) {
+            runNext(tasks, results, next);
         }
-        if (name.equalsIgnoreCase("nutrition.water")) {
-            return HydrationFunctions.dataTypeToClass();
+        return results;
+    }
+
+    private static <T> void runNext(List<Supplier<CompletableFuture<T>>> tasks, List<CompletableFuture<T>> results,
+            AtomicInteger next) {
+        int i = next.getAndIncrement();
+        if (i >= tasks.size()) {
+            return;
         }
-        if (name.toLowerCase().startsWith("nutrition.")) {
-            return NutritionXFunctions.dataTypeToClass();
+        CompletableFuture<T> result = results.get(i);
+        CompletableFuture<T> task;
+        try {
+            task = tasks.get(i).get();
+        } catch (RuntimeException ex) {
+            task = new CompletableFuture<>();
+            task.completeExceptionally(ex);
         }
-        if (name.equalsIgnoreCase("sleep")) {
-            return SleepFunctions.dataTypeToClass();
+        task.whenComplete((res, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else {
+                result.complete(res);
+            }
+            runNext(tasks, results, next);
+        });
+    }
+
+    /**
+     * Sends the error of a failed asynchronous call to JS
+     *
+     * @param callbackContext where to send the error
+     * @param ex              the exception the call failed with
+     * @return null, so that it can be used in exceptionally()
+     */
+    private static Void sendAsyncError(CallbackContext callbackContext, Throwable ex) {
+        callbackContext.error(asyncErrorMessage(ex));
+        return null;
+    }
+
+    /**
+     * Gets the message to be sent to JS for the error of a failed asynchronous call
+     */
+    private static String asyncErrorMessage(Throwable ex) {
+        Throwable cause = ex;
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            cause = ex.getCause();
         }
-        if (name.equalsIgnoreCase("heart_rate")) {
-            return HeartRateFunctions.dataTypeToClass();
+        Log.e(TAG, "Health Connect call failed", cause);
+        if (cause instanceof JSONException) {
+            return "Cannot parse request or response object " + cause.getMessage();
         }
+        return cause.getMessage();
+    }
 
-        return null;
+    // data types are registered in DataTypeRegistry
+    private KClass<? extends androidx.health.connect.client.records.Record> dataTypeNameToClass(String name) {
+        DataTypeHandler handler = DataTypeRegistry.forName(name);
+        return handler != null ? handler.getRecordClass() : null;
     }
 
     /**
@@ -336,18 +620,14 @@ public class HealthPlugin extends CordovaPlugin {
      *
      * @param args    json array coming from the plugin
      * @param request if true also requests permissions
+     * @param callbackContext callback of the call
      */
-    private void checkAuthorization(final JSONArray args, boolean request) {
+    private void checkAuthorization(final JSONArray args, boolean request, CallbackContext callbackContext) {
         try {
             Log.d(TAG, "checking authorization");
             JSONObject readWriteObj = args.getJSONObject(0);
 
-            // see https://kt.academy/article/cc-other-languages
-            Set<String> grantedPermissions = BuildersKt.runBlocking(
-                    EmptyCoroutineContext.INSTANCE,
-                    (s, c) -> healthConnectClient.getPermissionController().getGrantedPermissions(c));
-
-            Set<String> permissionsToRequest = new HashSet<>();
+            Set<String> neededPermissions = new HashSet<>();
 
             if (readWriteObj.has("read")) {
                 JSONArray readArray = readWriteObj.getJSONArray("read");
@@ -358,15 +638,7 @@ public class HealthPlugin extends CordovaPlugin {
                         callbackContext.error("Data type not supported " + dataTypeStr);
                         return;
                     }
-                    String perm = HealthPermission.getReadPermission(datatype);
-                    if (!grantedPermissions.contains(perm)) {
-                        if (request) {
-                            permissionsToRequest.add(perm);
-                        } else {
-                            callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, false));
-                            return;
-                        }
-                    }
+                    neededPermissions.add(HealthPermission.getReadPermission(datatype));
                 }
             }
             if (readWriteObj.has("write")) {
@@ -378,28 +650,29 @@ public class HealthPlugin extends CordovaPlugin {
                         callbackContext.error("Data type not supported " + dataTypeStr);
                         return;
                     }
-                    String perm = HealthPermission.getWritePermission(datatype);
-                    if (!grantedPermissions.contains(perm)) {
-                        if (request) {
-                            permissionsToRequest.add(perm);
-                        } else {
-                            callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, false));
-                            return;
-                        }
-                    }
+                    neededPermissions.add(HealthPermission.getWritePermission(datatype));
                 }
             }
 
-            if (request && !permissionsToRequest.isEmpty()) {
-                Log.d(TAG, "requesting authorization");
-                permissionsLauncher.launch(permissionsToRequest);
-            } else {
-                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, true));
-            }
+            // permissions are usually answered from the cache, without calling Health Connect
+            getGrantedPermissions().thenAccept(grantedPermissions -> {
+                Set<String> permissionsToRequest = new HashSet<>(neededPermissions);
+                permissionsToRequest.removeAll(grantedPermissions);
+
+                if (request && !permissionsToRequest.isEmpty()) {
+                    if (!authorizationCallId.compareAndSet(null, callbackContext.getCallbackId())) {
+                        callbackContext.error("Another authorization request is in progress");
+                        return;
+                    }
+                    Log.d(TAG, "requesting authorization");
+                    permissionsLauncher.launch(permissionsToRequest);
+                } else {
+                    callbackContext.sendPluginResult(
+                            new PluginResult(PluginResult.Status.OK, permissionsToRequest.isEmpty()));
+                }
+            }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
         } catch (JSONException ex) {
             callbackContext.error("Cannot read request object" + ex.getMessage());
-        } catch (InterruptedException ex2) {
-            callbackContext.error("Thread interrupted" + ex2.getMessage());
         }
     }
 
@@ -439,369 +712,744 @@ public class HealthPlugin extends CordovaPlugin {
         obj.put("entryMethod", method);
     }
 
-    private void query(final JSONArray args) {
+    /**
+     * Parameters of a query, parsed from the object passed by JS
+     */
+    private static final class QuerySpec {
+        String datatype;
+        DataTypeHandler handler;
+        KClass<? extends Record> dt;
+        long st;
+        long et;
+        int limit = 1000;
+        boolean ascending = false;
+        // special flags:
+        boolean keepSession = false;
+        boolean allowManual = false;
+        // if streaming, each page is sent to JS as soon as it is converted
+        boolean stream = false;
+        // if more than 1, the time range is split into slices that are read concurrently
+        int slices = 1;
+        // activities only: add calories and distance of each session
+        boolean includeCalories = false;
+        boolean includeDistance = false;
+        // if caching, ranges already read are served from memory
+        boolean cache = false;
+        long cacheTtl = DEFAULT_CACHE_TTL;
+        // only the data of these apps is read, all apps if empty
+        HashSet<DataOrigin> dor = new HashSet<>();
+        // package names of the apps whose data is dropped
+        Set<String> excludedOrigins = Collections.emptySet();
+        // if set, data points are returned in columns, see ColumnarEncoder
+        String format = null;
+        // heart rate only: if more than 0, samples are reduced to at most this number of points
+        int maxPoints = 0;
+    }
 
-        try {
-            if (!args.getJSONObject(0).has("startDate")) {
-                callbackContext.error("Missing argument startDate");
-                return;
-            }
-            long st = args.getJSONObject(0).getLong("startDate");
-            if (!args.getJSONObject(0).has("endDate")) {
-                callbackContext.error("Missing argument endDate");
-                return;
+    /**
+     * Parses the parameters of a query
+     *
+     * @param queryObj object coming from JS
+     * @return the parsed query
+     * @throws IllegalArgumentException if a mandatory argument is missing or the data type is not supported
+     */
+    private QuerySpec parseQuery(JSONObject queryObj) throws JSONException {
+        QuerySpec q = new QuerySpec();
+        if (!queryObj.has("startDate")) {
+            throw new IllegalArgumentException("Missing argument startDate");
+        }
+        q.st = queryObj.getLong("startDate");
+        if (!queryObj.has("endDate")) {
+            throw new IllegalArgumentException("Missing argument endDate");
+        }
+        q.et = queryObj.getLong("endDate");
+        if (!queryObj.has("dataType")) {
+            throw new IllegalArgumentException("Missing argument dataType");
+        }
+        q.datatype = queryObj.getString("dataType");
+        q.handler = DataTypeRegistry.forName(q.datatype);
+        if (q.handler == null) {
+            throw new IllegalArgumentException("Datatype " + q.datatype + " not supported");
+        }
+        q.dt = q.handler.getRecordClass();
+
+        if (queryObj.has("limit")) {
+            q.limit = queryObj.getInt("limit");
+        }
+        if (queryObj.has("ascending")) {
+            q.ascending = queryObj.getBoolean("ascending");
+        }
+        if (queryObj.has("sleepSession")) {
+            q.keepSession = queryObj.getBoolean("sleepSession");
+        }
+        if (queryObj.optBoolean("compactStages", false)) {
+            if (!q.datatype.equalsIgnoreCase("sleep") || !q.keepSession) {
+                throw new IllegalArgumentException("compactStages can only be used with sleep and sleepSession");
             }
-            long et = args.getJSONObject(0).getLong("endDate");
-            if (!args.getJSONObject(0).has("dataType")) {
-                callbackContext.error("Missing argument dataType");
-                return;
+            q.handler = DataTypeRegistry.SLEEP_COMPACT;
+        }
+        if (queryObj.has("filterOutUserInput")) {
+            q.allowManual = queryObj.getBoolean("filterOutUserInput") == false;
+        }
+        if (queryObj.has("stream")) {
+            q.stream = queryObj.getBoolean("stream");
+        }
+        if (queryObj.has("parallel")) {
+            q.slices = queryObj.getInt("parallel");
+        }
+        if (q.datatype.equalsIgnoreCase("activity")) {
+            q.includeCalories = queryObj.optBoolean("includeCalories", false);
+            q.includeDistance = queryObj.optBoolean("includeDistance", false);
+        }
+        if (queryObj.has("cache")) {
+            q.cache = queryObj.getBoolean("cache");
+        }
+        if (queryObj.has("cacheTtl")) {
+            q.cacheTtl = queryObj.getLong("cacheTtl");
+        }
+        if (queryObj.has("format")) {
+            q.format = queryObj.getString("format");
+            if (!q.format.equals(ColumnarEncoder.FORMAT_COLUMNAR) && !q.format.equals(ColumnarEncoder.FORMAT_BINARY)) {
+                throw new IllegalArgumentException("Format not recognized " + q.format);
             }
-            String datatype = args.getJSONObject(0).getString("dataType");
-            KClass<? extends Record> dt = dataTypeNameToClass(datatype);
-            if (dt == null) {
-                callbackContext.error("Datatype " + datatype + " not supported");
-                return;
+            if (q.format.equals(ColumnarEncoder.FORMAT_BINARY) && q.stream) {
+                throw new IllegalArgumentException("Binary format cannot be used with stream");
             }
-
-            int limit = 1000;
-            if (args.getJSONObject(0).has("limit")) {
-                limit = args.getJSONObject(0).getInt("limit");
+        }
+        if (queryObj.has("maxPoints")) {
+            if (!q.datatype.equalsIgnoreCase("heart_rate")) {
+                throw new IllegalArgumentException("maxPoints is only supported for heart_rate");
             }
-            boolean ascending = false;
-            if (args.getJSONObject(0).has("ascending")) {
-                ascending = args.getJSONObject(0).getBoolean("ascending");
+            q.maxPoints = queryObj.getInt("maxPoints");
+            if (q.maxPoints < 1 || q.maxPoints > HeartRateDownsampler.MAX_POINTS) {
+                throw new IllegalArgumentException(
+                        "maxPoints must be between 1 and " + HeartRateDownsampler.MAX_POINTS);
             }
-
-            // special flags:
-            boolean keepSession = false;
-            if (args.getJSONObject(0).has("sleepSession")) {
-                keepSession = args.getJSONObject(0).getBoolean("sleepSession");
+        }
+        q.dor = parseDataOrigins(queryObj);
+        if (queryObj.has("excludeSourceBundleIds")) {
+            // Health Connect can only filter by the apps to include, excluded ones are dropped when converting
+            JSONArray excluded = queryObj.getJSONArray("excludeSourceBundleIds");
+            q.excludedOrigins = new HashSet<>();
+            for (int i = 0; i < excluded.length(); i++) {
+                q.excludedOrigins.add(excluded.getString(i));
             }
+        }
+        // don't create slices shorter than 1 ms
+        q.slices = (int) Math.max(1, Math.min(q.slices, q.et - q.st));
+        return q;
+    }
 
-            if (this.healthConnectClient == null) {
-                callbackContext.error("You must call requestAuthorization() before query()");
-                return;
+    private void query(final JSONArray args, CallbackContext callbackContext) {
+        QuerySpec q;
+        try {
+            q = parseQuery(args.getJSONObject(0));
+        } catch (IllegalArgumentException ex) {
+            callbackContext.error(ex.getMessage());
+            return;
+        } catch (JSONException ex) {
+            Log.e(TAG, "Could not parse query object", ex);
+            callbackContext.error("Could not parse query object");
+            return;
+        }
+
+        if (this.healthConnectClient == null) {
+            callbackContext.error("You must call requestAuthorization() before query()");
+            return;
+        }
+
+        if (q.format != null && q.datatype.equalsIgnoreCase("heart_rate") && q.maxPoints == 0 && !q.cache
+                && q.slices == 1) {
+            queryHeartRateColumns(q, callbackContext);
+        } else if (q.stream) {
+            readQuery(q, pageset -> sendQueryPage(formatResult(q, pageset), false, callbackContext))
+                    // terminal message, no more pages will follow
+                    .thenRun(() -> sendQueryPage(formatResult(q, new JSONArray()), true, callbackContext))
+                    .exceptionally(ex -> sendAsyncError(callbackContext, ex));
+        } else {
+            JSONArray resultset = new JSONArray();
+            readQuery(q, pageset -> appendAll(resultset, pageset))
+                    .thenRun(() -> sendQueryResult(q, resultset, callbackContext))
+                    .exceptionally(ex -> sendAsyncError(callbackContext, ex));
+        }
+    }
+
+    /**
+     * Converts the data points of a query to the requested format
+     *
+     * @return the data points as they are, or their columnar object
+     */
+    private static Object formatResult(QuerySpec q, JSONArray resultset) {
+        if (q.format == null) {
+            return resultset;
+        }
+        try {
+            return ColumnarEncoder.encode(resultset);
+        } catch (JSONException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Sends the result of a query that is not streamed, in the requested format.
+     * In binary format, the columnar object and the buffer with its numeric columns are sent as two arguments.
+     */
+    private static void sendQueryResult(QuerySpec q, JSONArray resultset, CallbackContext callbackContext) {
+        if (q.format == null) {
+            callbackContext.success(resultset);
+            return;
+        }
+        JSONObject columnar = (JSONObject) formatResult(q, resultset);
+        if (q.format.equals(ColumnarEncoder.FORMAT_COLUMNAR)) {
+            callbackContext.success(columnar);
+            return;
+        }
+        try {
+            sendBinaryResult(columnar, ColumnarEncoder.pack(columnar), callbackContext);
+        } catch (JSONException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Sends a columnar object and the buffer with its numeric columns as two arguments
+     */
+    private static void sendBinaryResult(JSONObject columnar, byte[] packed, CallbackContext callbackContext) {
+        List<PluginResult> parts = new ArrayList<>(2);
+        parts.add(new PluginResult(PluginResult.Status.OK, columnar));
+        parts.add(new PluginResult(PluginResult.Status.OK, packed));
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, parts));
+    }
+
+    /**
+     * Reads a heart rate query in columnar or binary format, encoding the samples directly into columns
+     * instead of converting each one into a data point first
+     */
+    private void queryHeartRateColumns(QuerySpec q, CallbackContext callbackContext) {
+        TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(q.st), Instant.ofEpochMilli(q.et));
+        HeartRateEncoder encoder = new HeartRateEncoder();
+        AtomicInteger pageCount = new AtomicInteger();
+        readPages(q.dt, timeRange, q.dor, q.ascending, q.limit, null, records -> {
+            pageCount.incrementAndGet();
+            for (Record record : filterRecords(records, q.allowManual, q.excludedOrigins)) {
+                encoder.add((HeartRateRecord) record);
+            }
+            if (q.stream) {
+                sendQueryPage(encoder.toColumnar(true), false, callbackContext);
+                encoder.clear();
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+        }).thenRun(() -> {
+            Log.d(TAG, "Heart rate query successful - retrieved " + pageCount.get() + " page(s)");
+            try {
+                if (q.stream) {
+                    // terminal message, no more pages will follow
+                    sendQueryPage(encoder.toColumnar(true), true, callbackContext);
+                } else if (q.format.equals(ColumnarEncoder.FORMAT_COLUMNAR)) {
+                    callbackContext.success(encoder.toColumnar(true));
+                } else {
+                    sendBinaryResult(encoder.toColumnar(false), encoder.pack(), callbackContext);
+                }
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+        }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
+    }
+
+    /**
+     * Executes several queries concurrently and returns all the results in one object,
+     * keyed by the key of each query, or by its data type if no key is given
+     */
+    private void queryBatch(final JSONArray args, CallbackContext callbackContext) {
+        List<String> keys = new ArrayList<>();
+        List<QuerySpec> queries = new ArrayList<>();
+        try {
+            JSONArray queriesArr = args.getJSONArray(0);
+            for (int i = 0; i < queriesArr.length(); i++) {
+                JSONObject queryObj = queriesArr.getJSONObject(i);
+                String key = queryObj.has("key") ? queryObj.getString("key") : queryObj.optString("dataType");
+                if (keys.contains(key)) {
+                    callbackContext.error("Duplicated query key " + key);
+                    return;
+                }
+                QuerySpec q = parseQuery(queryObj);
+                // batched results are always returned at once
+                q.stream = false;
+                if (ColumnarEncoder.FORMAT_BINARY.equals(q.format)) {
+                    callbackContext.error("Binary format is not supported in queryBatch()");
+                    return;
+                }
+                keys.add(key);
+                queries.add(q);
+            }
+        } catch (IllegalArgumentException ex) {
+            callbackContext.error(ex.getMessage());
+            return;
+        } catch (JSONException ex) {
+            Log.e(TAG, "Could not parse query object", ex);
+            callbackContext.error("Could not parse query object");
+            return;
+        }
+
+        if (this.healthConnectClient == null) {
+            callbackContext.error("You must call requestAuthorization() before queryBatch()");
+            return;
+        }
+
+        List<Supplier<CompletableFuture<JSONArray>>> tasks = new ArrayList<>(queries.size());
+        for (QuerySpec q : queries) {
+            tasks.add(() -> {
+                JSONArray resultset = new JSONArray();
+                return readQuery(q, pageset -> appendAll(resultset, pageset)).thenApply(v -> resultset);
+            });
+        }
+        List<CompletableFuture<JSONArray>> results = runBounded(tasks, MAX_PARALLEL_READS);
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).thenRun(() -> {
+            JSONObject resultsObj = new JSONObject();
+            try {
+                for (int i = 0; i < keys.size(); i++) {
+                    resultsObj.put(keys.get(i), formatResult(queries.get(i), results.get(i).join()));
+                }
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
             }
+            Log.d(TAG, "Batch query successful - " + keys.size() + " queries");
+            callbackContext.success(resultsObj);
+        }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
+    }
+
+    /**
+     * Appends all the elements of an array to another one
+     */
+    private static void appendAll(JSONArray target, JSONArray source) {
+        for (int i = 0; i < source.length(); i++) {
+            target.put(source.opt(i));
+        }
+    }
+
+    /**
+     * Reads the records of a query and converts them, page by page
+     *
+     * @param q       the query
+     * @param handler called with the converted data points of each page, in the requested order
+     * @return a future that completes when all pages have been handled
+     */
+    private CompletableFuture<Void> readQuery(QuerySpec q, Consumer<JSONArray> handler) {
+        if (q.maxPoints > 0) {
+            return readQueryDownsampled(q, handler);
+        }
+        if (q.cache) {
+            return readQueryCached(q, handler);
+        }
+        if (q.slices > 1) {
+            return readQueryParallel(q, handler);
+        }
+        TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(q.st), Instant.ofEpochMilli(q.et));
+        AtomicInteger pageCount = new AtomicInteger();
+
+        // each page is requested once the previous one has been converted and handed over,
+        // also when it is enriched asynchronously, so that only one page at a time is kept in memory
+        return readPages(q.dt, timeRange, q.dor, q.ascending, q.limit, null, records -> {
+            Log.d(TAG, "Fetched page " + pageCount.incrementAndGet() + " with " + records.size() + " records");
+            return convertPage(q, records).thenAccept(handler);
+        }).thenRun(() -> Log.d(TAG, "Data query successful - retrieved " + pageCount.get() + " page(s)"));
+    }
 
-            boolean allowManual = false;
-            if (args.getJSONObject(0).has("filterOutUserInput")) {
-                allowManual = args.getJSONObject(0).getBoolean("filterOutUserInput") == false;
+    /**
+     * Reads a heart rate query reducing the samples to at most maxPoints points, page by page,
+     * so that neither the records nor the samples of the whole range are kept in memory.
+     * The points are handed over all at once, at the end.
+     */
+    private CompletableFuture<Void> readQueryDownsampled(QuerySpec q, Consumer<JSONArray> handler) {
+        TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(q.st), Instant.ofEpochMilli(q.et));
+        HeartRateDownsampler downsampler = new HeartRateDownsampler(q.st, q.et, q.maxPoints);
+        AtomicInteger pageCount = new AtomicInteger();
+        return readPages(q.dt, timeRange, q.dor, q.ascending, q.limit, null, records -> {
+            pageCount.incrementAndGet();
+            for (Record record : filterRecords(records, q.allowManual, q.excludedOrigins)) {
+                downsampler.add((HeartRateRecord) record);
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+        }).thenRun(() -> {
+            Log.d(TAG, "Downsampled query successful - retrieved " + pageCount.get() + " page(s)");
+            try {
+                handler.accept(downsampler.toJSON(q.ascending));
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
             }
+        });
+    }
 
-            TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
-            HashSet<DataOrigin> dor = new HashSet<>();
+    /**
+     * Reads a query through the cache: only the parts of the time range that are not cached are read,
+     * concurrently, and the result is handed over all at once
+     */
+    private CompletableFuture<Void> readQueryCached(QuerySpec q, Consumer<JSONArray> handler) {
+        String key = cacheKey(q);
+        long now = System.currentTimeMillis();
+        List<long[]> gaps = queryCache.missingRanges(key, q.st, q.et, q.cacheTtl, now);
+        // the cached points are taken now, they are still returned if the cache drops them in the meantime
+        List<List<JSONObject>> pointLists = queryCache.get(key, q.st, q.et);
+
+        List<Supplier<CompletableFuture<List<JSONObject>>>> tasks = new ArrayList<>(gaps.size());
+        for (long[] gap : gaps) {
+            TimeRangeFilter gapRange = TimeRangeFilter.between(Instant.ofEpochMilli(gap[0]),
+                    Instant.ofEpochMilli(gap[1]));
+            tasks.add(() -> readAllRecords(q.dt, gapRange, q.dor, true, q.limit).thenCompose(records -> {
+                try {
+                    return convertPage(q, records);
+                } catch (JSONException ex) {
+                    throw new CompletionException(ex);
+                }
+            }).thenApply(pageset -> {
+                List<JSONObject> points = QueryCache.segmentPoints(pageset, gap[0], gap[1]);
+                queryCache.put(key, gap[0], gap[1], points, now);
+                return points;
+            }));
+        }
+        List<CompletableFuture<List<JSONObject>>> fetched = runBounded(tasks, MAX_PARALLEL_READS);
 
-            // Implement pagination to retrieve all records
-            List<Record> allRecords = new LinkedList<>();
-            String pageToken = null;
-            int pageCount = 0;
+        return CompletableFuture.allOf(fetched.toArray(new CompletableFuture[0])).thenRun(() -> {
+            for (CompletableFuture<List<JSONObject>> gapPoints : fetched) {
+                pointLists.add(gapPoints.join());
+            }
+            Log.d(TAG, "Cached data query successful - read " + gaps.size() + " missing range(s)");
+            handler.accept(QueryCache.merge(pointLists, q.st, q.et, q.ascending));
+        });
+    }
 
-            do {
-                ReadRecordsRequest request = new ReadRecordsRequest(dt, timeRange, dor, ascending, limit, pageToken);
-                // see https://kt.academy/article/cc-other-languages
-                ReadRecordsResponse response = BuildersKt.runBlocking(
-                        EmptyCoroutineContext.INSTANCE,
-                        (s, c) -> healthConnectClient.readRecords(request, c));
+    /**
+     * Key of a query in the cache, the data type followed by all the options that change the returned points
+     */
+    private static String cacheKey(QuerySpec q) {
+        return q.datatype.toLowerCase() + "|" + q.allowManual + "|" + q.keepSession + "|"
+                + (q.handler == DataTypeRegistry.SLEEP_COMPACT) + "|" + q.includeCalories
+                + "|" + q.includeDistance + "|" + originsKey(q.dor) + "|" + new TreeSet<>(q.excludedOrigins);
+    }
 
-                allRecords.addAll(response.getRecords());
-                pageToken = response.getPageToken();
-                pageCount++;
+    /**
+     * Parses the apps whose data is requested, they are passed to Health Connect as data origin filter
+     *
+     * @param queryObj object coming from JS
+     * @return the data origins, empty if the data of all apps is requested
+     */
+    private static HashSet<DataOrigin> parseDataOrigins(JSONObject queryObj) throws JSONException {
+        HashSet<DataOrigin> dor = new HashSet<>();
+        if (queryObj.has("sourceBundleIds")) {
+            JSONArray ids = queryObj.getJSONArray("sourceBundleIds");
+            for (int i = 0; i < ids.length(); i++) {
+                dor.add(new DataOrigin(ids.getString(i)));
+            }
+        }
+        return dor;
+    }
 
-                Log.d(TAG, "Fetched page " + pageCount + " with " + response.getRecords().size() + " records");
+    /**
+     * Part of a cache key identifying a data origin filter, independently of the order of the origins
+     */
+    private static String originsKey(HashSet<DataOrigin> dor) {
+        List<String> origins = new ArrayList<>();
+        for (DataOrigin origin : dor) {
+            origins.add(origin.getPackageName());
+        }
+        Collections.sort(origins);
+        return origins.toString();
+    }
 
-            } while (pageToken != null);
+    /**
+     * Converts the records of one page and, if requested, enriches them
+     *
+     * @return a future that completes with the converted data points
+     */
+    private CompletableFuture<JSONArray> convertPage(QuerySpec q, List<Record> records) throws JSONException {
+        JSONArray pageset = new JSONArray();
+        populateFromRecords(records, q.handler, q.datatype, q.allowManual, q.excludedOrigins, q.keepSession,
+                pageset);
+        if (q.includeCalories || q.includeDistance) {
+            return enrichActivities(q, pageset).thenApply(v -> pageset);
+        }
+        return CompletableFuture.completedFuture(pageset);
+    }
 
-            Log.d(TAG, "Data query successful - retrieved " + allRecords.size() + " total records across " + pageCount + " page(s)");
-            JSONArray resultset = new JSONArray();
-            // default behaviour is that each record corresponds to one element in the
-            // array, but there can be exceptions
-            boolean oneElementPerRecord = true;
-
-            for (Object datapointObj : allRecords) {
-                if (datapointObj instanceof androidx.health.connect.client.records.Record) {
-                    androidx.health.connect.client.records.Record datapoint = (androidx.health.connect.client.records.Record) datapointObj;
-                    JSONObject obj = new JSONObject();
-
-                    populateFromMeta(obj, datapoint.getMetadata());
-                    if (obj.has("entryMethod") && !allowManual) {
-                        String entryMethod = obj.getString("entryMethod");
-                        if (entryMethod.equals("manual_entry")) {
-                            // skip manual entries
-                            continue;
+    /**
+     * Adds active calories and / or distance to each activity, aggregated over the time of the session.
+     * Sessions are aggregated concurrently, with one aggregate request per session.
+     *
+     * @param q          the query, specifying what needs to be added
+     * @param activities converted activities, modified in place
+     * @return a future that completes when all activities have been enriched
+     */
+    private CompletableFuture<Void> enrichActivities(QuerySpec q, JSONArray activities) {
+        List<Supplier<CompletableFuture<Void>>> tasks = new ArrayList<>(activities.length());
+        for (int i = 0; i < activities.length(); i++) {
+            JSONObject activity = activities.optJSONObject(i);
+            TimeRangeFilter sessionRange = TimeRangeFilter.between(
+                    Instant.ofEpochMilli(activity.optLong("startDate")),
+                    Instant.ofEpochMilli(activity.optLong("endDate")));
+            Set<AggregateMetric<?>> metrics = new HashSet<>();
+            if (q.includeCalories) {
+                metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
+            }
+            if (q.includeDistance) {
+                metrics.add(DistanceRecord.DISTANCE_TOTAL);
+            }
+            AggregateRequest request = new AggregateRequest(metrics, sessionRange, q.dor);
+            tasks.add(() -> {
+                CompletableFuture<AggregationResult> response = launch(
+                        (s, c) -> healthConnectClient.aggregate(request, c));
+                return response.thenAccept(result -> {
+                    try {
+                        if (q.includeCalories) {
+                            Energy cals = result.get(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
+                            activity.put("calories", cals != null ? cals.getKilocalories() : 0);
+                        }
+                        if (q.includeDistance) {
+                            Length dist = result.get(DistanceRecord.DISTANCE_TOTAL);
+                            activity.put("distance", dist != null ? dist.getMeters() : 0);
                         }
+                    } catch (JSONException ex) {
+                        throw new CompletionException(ex);
                     }
+                });
+            });
+        }
+        List<CompletableFuture<Void>> enriched = runBounded(tasks, MAX_PARALLEL_READS);
+        return CompletableFuture.allOf(enriched.toArray(new CompletableFuture[0]));
+    }
 
-                    // DATA_TYPES here we need to add support for each different data type
-                    if (datapoint instanceof StepsRecord) {
-                        StepsFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof FloorsClimbedRecord) {
-                        StairsFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof WeightRecord) {
-                        WeightFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof HeightRecord) {
-                        HeightFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof BodyFatRecord) {
-                        BodyFatRecord bodyFatDP = (BodyFatRecord) datapoint;
-                        obj.put("startDate", bodyFatDP.getTime().toEpochMilli());
-                        obj.put("endDate", bodyFatDP.getTime().toEpochMilli());
-
-                        double perc = bodyFatDP.getPercentage().getValue();
-                        obj.put("value", perc);
-                        obj.put("unit", "%");
-                    } else if (datapoint instanceof ExerciseSessionRecord) {
-                        ExerciseSessionRecord activityDP = (ExerciseSessionRecord) datapoint;
-                        obj.put("startDate", activityDP.getStartTime().toEpochMilli());
-                        obj.put("endDate", activityDP.getEndTime().toEpochMilli());
-
-                        int exType = activityDP.getExerciseType();
-                        String activityStr = ActivityMapper.activityFromExerciseType(exType);
-
-                        obj.put("value", activityStr);
-                        obj.put("unit", "activityType");
-                    } else if (datapoint instanceof TotalCaloriesBurnedRecord) {
-                        TotalCaloriesBurnedRecord caloriesDP = (TotalCaloriesBurnedRecord) datapoint;
-                        obj.put("startDate", caloriesDP.getStartTime().toEpochMilli());
-                        obj.put("endDate", caloriesDP.getEndTime().toEpochMilli());
-
-                        double kcals = caloriesDP.getEnergy().getKilocalories();
-
-                        obj.put("value", kcals);
-                        obj.put("unit", "kcal");
-                    } else if (datapoint instanceof ActiveCaloriesBurnedRecord) {
-                        ActiveCaloriesBurnedRecord caloriesDP = (ActiveCaloriesBurnedRecord) datapoint;
-                        obj.put("startDate", caloriesDP.getStartTime().toEpochMilli());
-                        obj.put("endDate", caloriesDP.getEndTime().toEpochMilli());
-
-                        double kcals = caloriesDP.getEnergy().getKilocalories();
-
-                        obj.put("value", kcals);
-                        obj.put("unit", "kcal");
-                    } else if (datapoint instanceof BasalMetabolicRateRecord) {
-                        BasalMetabolicRateRecord basalRateDP = (BasalMetabolicRateRecord) datapoint;
-                        obj.put("startDate", basalRateDP.getTime().toEpochMilli());
-                        obj.put("endDate", basalRateDP.getTime().toEpochMilli());
-
-                        Power pow = basalRateDP.getBasalMetabolicRate();
-                        obj.put("value", pow.getKilocaloriesPerDay());
-                        obj.put("unit", "kcal/day");
-                    } else if (datapoint instanceof BloodGlucoseRecord) {
-                        BloodGlucoseFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof BloodPressureRecord) {
-                        BloodPressureFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof DistanceRecord) {
-                        DistanceRecord disanceR = (DistanceRecord) datapoint;
-                        obj.put("startDate", disanceR.getStartTime().toEpochMilli());
-                        obj.put("endDate", disanceR.getEndTime().toEpochMilli());
-
-                        double meters = disanceR.getDistance().getMeters();
-                        obj.put("value", meters);
-                        obj.put("unit", "m");
-                    } else if (datapoint instanceof HydrationRecord) {
-                        HydrationFunctions.populateFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof NutritionRecord) {
-                        if (datatype.toLowerCase().startsWith("nutrition.")) {
-                            NutritionXFunctions.populateFromQuery(datatype, datapoint, obj);
+    /**
+     * Reads a time range split into disjoint slices, which are read concurrently and handed over
+     * page by page in the requested order. A slice only reads a few pages ahead while the previous
+     * slices are handed over, so that the records of the whole range are never kept in memory.
+     */
+    private CompletableFuture<Void> readQueryParallel(QuerySpec q, Consumer<JSONArray> handler) {
+        long sliceMs = (q.et - q.st) / q.slices;
+        AtomicInteger recordCount = new AtomicInteger();
+        List<CompletableFuture<Void>> handedOver = new ArrayList<>(q.slices);
+        for (int n = 0; n < q.slices; n++) {
+            handedOver.add(new CompletableFuture<>());
+        }
+        List<Supplier<CompletableFuture<Void>>> tasks = new ArrayList<>(q.slices);
+        for (int n = 0; n < q.slices; n++) {
+            // slices are started in the order they are handed over
+            int i = q.ascending ? n : q.slices - 1 - n;
+            long sliceSt = q.st + i * sliceMs;
+            long sliceEt = (i == q.slices - 1) ? q.et : sliceSt + sliceMs;
+            boolean oldest = i == 0;
+            boolean newest = i == q.slices - 1;
+            CompletableFuture<Void> turn = n == 0 ? CompletableFuture.completedFuture(null) : handedOver.get(n - 1);
+            CompletableFuture<Void> done = handedOver.get(n);
+            tasks.add(() -> readSlice(q, sliceSt, sliceEt, oldest, newest, turn, handler, recordCount)
+                    .whenComplete((v, ex) -> {
+                        if (ex != null) {
+                            done.completeExceptionally(ex);
                         } else {
-                            NutritionFunctions.populateFromQuery(datapoint, obj);
+                            done.complete(null);
                         }
-                    } else if (datapoint instanceof SleepSessionRecord) {
-                        oneElementPerRecord = keepSession; // flag it, so we don't add empty objs later
-                        SleepFunctions.populateFromQuery(datapoint, obj, resultset, keepSession);
-                    } else if (datapoint instanceof HeartRateRecord) {
-                        oneElementPerRecord = false; // bpms are sent individually
-                        HeartRateFunctions.populateFromQuery(datapoint, resultset);
-                    } else if (datapoint instanceof RestingHeartRateRecord) {
-                        HeartRateFunctions.populateRestingFromQuery(datapoint, obj);
-                    } else if (datapoint instanceof HeartRateVariabilityRmssdRecord) {
-                        HeartRateFunctions.populateVariabilityFromQuery(datapoint, obj);
-                    } else {
-                        callbackContext.error("Sample received of unknown type " + datatype.toString());
-                        return;
-                    }
+                    }));
+        }
+        runBounded(tasks, MAX_PARALLEL_READS);
 
-                    // add to result array
-                    if (oneElementPerRecord) {
-                        resultset.put(obj);
-                    }
-                } else {
-                    Log.e(TAG, "Unrecognized type for record " + datapointObj.getClass());
+        return CompletableFuture.allOf(handedOver.toArray(new CompletableFuture[0]))
+                .thenRun(() -> Log.d(TAG, "Parallel data query successful - retrieved " + recordCount.get()
+                        + " total records across " + q.slices + " slice(s)"));
+    }
+
+    /**
+     * Reads one slice of a parallel query
+     *
+     * @param oldest true if this is the first slice of the range
+     * @param newest true if this is the last slice of the range
+     * @param turn   a future that completes when the previous slices have been handed over
+     * @return a future that completes when all the pages of the slice have been handed over
+     */
+    private CompletableFuture<Void> readSlice(QuerySpec q, long sliceSt, long sliceEt, boolean oldest, boolean newest,
+            CompletableFuture<Void> turn, Consumer<JSONArray> handler, AtomicInteger recordCount) {
+        TimeRangeFilter sliceRange = TimeRangeFilter.between(Instant.ofEpochMilli(sliceSt),
+                Instant.ofEpochMilli(sliceEt));
+        AtomicReference<CompletableFuture<Void>> delivered = new AtomicReference<>(turn);
+        AtomicInteger pagesAhead = new AtomicInteger();
+        return readPages(q.dt, sliceRange, q.dor, q.ascending, q.limit, null, records -> {
+            // records that cross the boundary between two slices are returned by both,
+            // only the slice where they start keeps them
+            List<Record> sliceRecords = new ArrayList<>(records.size());
+            for (Record record : records) {
+                long start = startMillis(record);
+                if ((oldest || start >= sliceSt) && (newest || start < sliceEt)) {
+                    sliceRecords.add(record);
                 }
             }
-            // done:
-            callbackContext.success(resultset);
-        } catch (JSONException ex) {
-            Log.e(TAG, "Could not parse query object", ex);
-            callbackContext.error("Could not parse query object");
-        } catch (InterruptedException ex2) {
-            Log.e(TAG, "Thread interrupted", ex2);
-            callbackContext.error("Thread interrupted" + ex2.getMessage());
+            recordCount.addAndGet(sliceRecords.size());
+            CompletableFuture<JSONArray> converted = convertPage(q, sliceRecords);
+            pagesAhead.incrementAndGet();
+            delivered.set(delivered.get().thenCompose(v -> converted).thenAccept(pageset -> {
+                pagesAhead.decrementAndGet();
+                handler.accept(pageset);
+            }));
+            if (pagesAhead.get() < MAX_SLICE_PAGES_AHEAD) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            return delivered.get();
+        }).thenCompose(v -> delivered.get());
+    }
+
+    /**
+     * @return start time of a record, in ms
+     */
+    private static long startMillis(Record record) {
+        if (record instanceof IntervalRecord) {
+            return ((IntervalRecord) record).getStartTime().toEpochMilli();
         }
+        return ((InstantRecord) record).getTime().toEpochMilli();
+    }
+
+    /**
+     * Consumer of the records contained in one page of a query
+     */
+    private interface PageHandler {
+        /**
+         * @return a future that completes when the page has been handled, the next page is not read before
+         */
+        CompletableFuture<Void> onPage(List<Record> records) throws JSONException;
     }
 
     /**
-     * Creates a Period-based aggregate request for the given data type
+     * Reads a time range page by page, following the page tokens
      *
-     * @param datatype The data type to query
-     * @param timeRange The time range filter
-     * @param period The period bucket size
-     * @param dor Data origins filter
-     * @return AggregateGroupByPeriodRequest or null if datatype not recognized
-     */
-    private AggregateGroupByPeriodRequest createPeriodRequest(String datatype, TimeRangeFilter timeRange,
-            Period period, HashSet<DataOrigin> dor) {
-        // DATA_TYPE: add here support for new data types
-        if (datatype.equalsIgnoreCase("steps")) {
-            return StepsFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("stairs")) {
-            return StairsFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("nutrition")) {
-            return NutritionFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-            return HydrationFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.toLowerCase().startsWith("nutrition.")) {
-            return NutritionXFunctions.prepareAggregateGroupByPeriodRequest(datatype, timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("weight")) {
-            return WeightFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("height")) {
-            return HeightFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("activity")) {
-            Set<AggregateMetric<Duration>> metrics = new HashSet<>();
-            metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-            return new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("calories")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(TotalCaloriesBurnedRecord.ENERGY_TOTAL);
-            return new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("calories.active")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
-            return new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("calories.basal")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
-            return new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("distance")) {
-            Set<AggregateMetric<Length>> metrics = new HashSet<>();
-            metrics.add(DistanceRecord.DISTANCE_TOTAL);
-            return new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("sleep")) {
-            return SleepFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("heart_rate")) {
-            return HeartRateFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("heart_rate.resting")) {
-            return HeartRateFunctions.prepareRestingAggregateGroupByPeriodRequest(timeRange, period, dor);
-        } else if (datatype.equalsIgnoreCase("blood_pressure")) {
-            return BloodPressureFunctions.prepareAggregateGroupByPeriodRequest(timeRange, period, dor);
-        }
-        return null;
+     * @param pageToken token of the page to read, null for the first one
+     * @param handler   called with the records of each page, in order, once the previous page has been handled
+     * @return a future that completes when all pages have been handled
+     */
+    private CompletableFuture<Void> readPages(KClass<? extends Record> dt, TimeRangeFilter timeRange,
+            HashSet<DataOrigin> dor, boolean ascending, int limit, String pageToken, PageHandler handler) {
+        ReadRecordsRequest request = new ReadRecordsRequest(dt, timeRange, dor, ascending, limit, pageToken);
+        CompletableFuture<ReadRecordsResponse> page = launch((s, c) -> healthConnectClient.readRecords(request, c));
+        return page.thenCompose(response -> {
+            CompletableFuture<Void> handled;
+            try {
+                handled = handler.onPage(response.getRecords());
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+            if (response.getPageToken() == null) {
+                return handled;
+            }
+            return handled.thenCompose(
+                    v -> readPages(dt, timeRange, dor, ascending, limit, response.getPageToken(), handler));
+        });
+    }
+
+    /**
+     * Reads all the records in a time range, following the page tokens
+     *
+     * @return a future that completes with the records of all pages
+     */
+    private CompletableFuture<List<Record>> readAllRecords(KClass<? extends Record> dt, TimeRangeFilter timeRange,
+            HashSet<DataOrigin> dor, boolean ascending, int limit) {
+        List<Record> records = new ArrayList<>();
+        return readPages(dt, timeRange, dor, ascending, limit, null, page -> {
+            records.addAll(page);
+            return CompletableFuture.<Void>completedFuture(null);
+        }).thenApply(v -> records);
     }
 
     /**
-     * Creates a Duration-based aggregate request for the given data type
+     * Sends one page of a streamed query to JS, keeping the callback alive unless it's the last one
      *
-     * @param datatype The data type to query
-     * @param timeRange The time range filter
-     * @param duration The duration bucket size
-     * @param dor Data origins filter
-     * @return AggregateGroupByDurationRequest or null if datatype not recognized
-     */
-    private AggregateGroupByDurationRequest createDurationRequest(String datatype, TimeRangeFilter timeRange,
-            Duration duration, HashSet<DataOrigin> dor) {
-        // DATA_TYPE: add here support for new data types
-        if (datatype.equalsIgnoreCase("steps")) {
-            return StepsFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("stairs")) {
-            return StairsFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("nutrition")) {
-            return NutritionFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-            return HydrationFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.toLowerCase().startsWith("nutrition.")) {
-            return NutritionXFunctions.prepareAggregateGroupByDurationRequest(datatype, timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("weight")) {
-            return WeightFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("height")) {
-            return HeightFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("activity")) {
-            Set<AggregateMetric<Duration>> metrics = new HashSet<>();
-            metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-            return new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("calories")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(TotalCaloriesBurnedRecord.ENERGY_TOTAL);
-            return new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("calories.active")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
-            return new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("calories.basal")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
-            return new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("distance")) {
-            Set<AggregateMetric<Length>> metrics = new HashSet<>();
-            metrics.add(DistanceRecord.DISTANCE_TOTAL);
-            return new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("sleep")) {
-            return SleepFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("heart_rate")) {
-            return HeartRateFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("heart_rate.resting")) {
-            return HeartRateFunctions.prepareRestingAggregateGroupByDurationRequest(timeRange, duration, dor);
-        } else if (datatype.equalsIgnoreCase("blood_pressure")) {
-            return BloodPressureFunctions.prepareAggregateGroupByDurationRequest(timeRange, duration, dor);
+     * @param pageset converted data points of the page, as an array or as a columnar object
+     * @param done    true if this is the terminal message
+     * @param callbackContext callback of the query
+     */
+    private void sendQueryPage(Object pageset, boolean done, CallbackContext callbackContext) {
+        JSONObject pageObj = new JSONObject();
+        try {
+            pageObj.put("data", pageset);
+            pageObj.put("done", done);
+        } catch (JSONException ex) {
+            // cannot happen with non-null keys
+            throw new CompletionException(ex);
         }
-        return null;
+        PluginResult result = new PluginResult(PluginResult.Status.OK, pageObj);
+        result.setKeepCallback(!done);
+        callbackContext.sendPluginResult(result);
     }
 
     /**
-     * Calculates the expected number of buckets for a given time range and bucket size
+     * Converts records returned by a query into JSON objects
      *
-     * @param startTime Start time for the query
-     * @param endTime End time for the query
-     * @param duration Duration bucket (for hour/minute), null if using period
-     * @param period Period bucket (for day/week/month/year), null if using duration
-     * @return Expected number of buckets
-     */
-    private long calculateExpectedBuckets(Instant startTime, Instant endTime, Duration duration, Period period) {
-        if (duration != null) {
-            // For duration-based buckets (hour, minute)
-            long totalMs = endTime.toEpochMilli() - startTime.toEpochMilli();
-            long bucketMs = duration.toMillis();
-            return (totalMs / bucketMs) + 1; // +1 to account for partial buckets
-        } else if (period != null) {
-            // For period-based buckets (day, week, month, year)
-            // This is approximate since months/years have variable lengths
-            ZonedDateTime start = startTime.atZone(ZoneId.systemDefault());
-            ZonedDateTime end = endTime.atZone(ZoneId.systemDefault());
-
-            long bucketCount = 0;
-            ZonedDateTime current = start;
-
-            // Count buckets by iterating through the time range
-            while (current.isBefore(end) || current.isEqual(end)) {
-                bucketCount++;
-                if (period.getDays() > 0) {
-                    current = current.plusDays(period.getDays());
-                } else if (period.getMonths() > 0) {
-                    current = current.plusMonths(period.getMonths());
-                } else if (period.getYears() > 0) {
-                    current = current.plusYears(period.getYears());
-                }
+     * @param records     records as returned by Health Connect
+     * @param handler     handler of the requested data type
+     * @param datatype    the data type as requested by the user
+     * @param allowManual if false, manually entered records are skipped
+     * @param excludedOrigins package names of the apps whose records are skipped
+     * @param keepSession if true, sleep is returned as sessions
+     * @param resultset   array where the converted objects are added
+     * @throws JSONException if a record could not be converted
+     */
+    private void populateFromRecords(List<Record> records, DataTypeHandler handler, String datatype,
+            boolean allowManual, Set<String> excludedOrigins, boolean keepSession, JSONArray resultset)
+            throws JSONException {
+        // records are normally all of the requested data type, the converter is only looked up
+        // again for records of another class
+        Class<?> handledClass = handler.getRecordJavaClass();
+        if (!allowManual || !excludedOrigins.isEmpty()) {
+            records = filterRecords(records, allowManual, excludedOrigins);
+        }
+        for (Record datapoint : records) {
+            DataTypeHandler recordHandler = datapoint.getClass() == handledClass ? handler
+                    : DataTypeRegistry.forRecord(datapoint);
+            if (recordHandler == null) {
+                throw new JSONException("Sample received of unknown type " + datatype);
+            }
 
-                // Safety check to prevent infinite loop
-                if (bucketCount > 10000) {
-                    break;
-                }
+            JSONObject obj = new JSONObject();
+            populateFromMeta(obj, datapoint.getMetadata());
+            // default behaviour is that each record corresponds to one element in the
+            // array, but there can be exceptions
+            if (recordHandler.populateFromQuery(datatype, datapoint, obj, resultset, keepSession)) {
+                resultset.put(obj);
             }
+        }
+    }
 
-            return bucketCount;
+    /**
+     * Filters out manually entered records and records of excluded apps, looking only at their metadata,
+     * so that no JSON is built for records that are going to be dropped
+     *
+     * @param allowManual     if false, manually entered records are dropped
+     * @param excludedOrigins package names of the apps whose records are dropped
+     * @return the records that are kept, the same list if none is dropped
+     */
+    private static List<Record> filterRecords(List<Record> records, boolean allowManual,
+            Set<String> excludedOrigins) {
+        int dropped = 0;
+        for (Record record : records) {
+            if (!isKept(record.getMetadata(), allowManual, excludedOrigins)) {
+                dropped++;
+            }
+        }
+        if (dropped == 0) {
+            return records;
         }
+        List<Record> filtered = new ArrayList<>(records.size() - dropped);
+        for (Record record : records) {
+            if (isKept(record.getMetadata(), allowManual, excludedOrigins)) {
+                filtered.add(record);
+            }
+        }
+        return filtered;
+    }
 
-        return 0;
+    private static boolean isKept(Metadata meta, boolean allowManual, Set<String> excludedOrigins) {
+        if (!allowManual && meta.getRecordingMethod() == Metadata.RECORDING_METHOD_MANUAL_ENTRY) {
+            return false;
+        }
+        return excludedOrigins.isEmpty() || meta.getDataOrigin() == null
+                || !excludedOrigins.contains(meta.getDataOrigin().getPackageName());
     }
 
-    private void queryAggregated(final JSONArray args) {
+    private void queryAggregated(final JSONArray args, CallbackContext callbackContext) {
         try {
             if (!args.getJSONObject(0).has("startDate")) {
                 callbackContext.error("Missing argument startDate");
@@ -820,15 +1468,22 @@ public class HealthPlugin extends CordovaPlugin {
                 return;
             }
             String datatype = args.getJSONObject(0).getString("dataType");
-            KClass<? extends Record> dt = dataTypeNameToClass(datatype);
-            if (dt == null) {
+            DataTypeHandler handler = DataTypeRegistry.forName(datatype);
+            if (handler == null) {
                 callbackContext.error("Datatype " + datatype + " not supported");
                 return;
             }
 
             boolean hasbucket = args.getJSONObject(0).has("bucket");
 
-            HashSet<DataOrigin> dor = new HashSet<>();
+            if (args.getJSONObject(0).has("excludeSourceBundleIds")) {
+                callbackContext.error("excludeSourceBundleIds is not supported in aggregated queries, use sourceBundleIds");
+                return;
+            }
+            HashSet<DataOrigin> dor = parseDataOrigins(args.getJSONObject(0));
+            // sleep only: summarize the stages of the sessions natively
+            boolean sleepStages = datatype.equalsIgnoreCase("sleep")
+                    && args.getJSONObject(0).optBoolean("sleepStages", false);
 
             if (hasbucket) {
 
@@ -871,8 +1526,6 @@ public class HealthPlugin extends CordovaPlugin {
                     return;
                 }
 
-                TimeRangeFilter timeRange = TimeRangeFilter.between(stZDT.toInstant(), etZDT.toInstant());
-
                 Duration duration = null;
                 Period period = null;
                 if (bucketType.equalsIgnoreCase("minute")) {
@@ -891,492 +1544,700 @@ public class HealthPlugin extends CordovaPlugin {
                     callbackContext.error("Bucket length not recognized " + bucketType);
                     return;
                 }
-                if (period != null) {
-                    // Period-based bucketing (day, week, month, year)
-                    final int MAX_BUCKETS = 5000;
-                    final int SAFE_BUCKET_LIMIT = 4999; // Use 4999 to have a safe margin
 
-                    timeRange = TimeRangeFilter.between(stLDT, etLDT);
+                // max number of chunks aggregated at the same time
+                int parallel = Math.max(1, args.getJSONObject(0).optInt("parallel", MAX_PARALLEL_READS));
+                // if streaming, the buckets of each chunk are sent to JS as soon as they are ready
+                boolean stream = args.getJSONObject(0).optBoolean("stream", false);
 
-                    // Calculate expected bucket count
-                    long expectedBuckets = calculateExpectedBuckets(stLDT.atZone(ZoneId.systemDefault()).toInstant(),
-                            etLDT.atZone(ZoneId.systemDefault()).toInstant(), null, period);
+                // period-based buckets are aligned to local time, duration-based ones start at the start time
+                BucketPlan plan = period != null
+                        ? BucketPlan.ofPeriod(stLDT, etLDT, period)
+                        : BucketPlan.ofDuration(stZDT.toInstant(), etZDT.toInstant(), duration);
 
-                    JSONArray retBucketsArr = new JSONArray();
+                if (sleepStages) {
+                    if (plan.getBucketCount() > MAX_BUCKETS) {
+                        callbackContext.error("Too many buckets for sleepStages, max is " + MAX_BUCKETS);
+                        return;
+                    }
+                    aggregateSleepStages(plan.bucketBounds(), dor, true, stream, callbackContext);
+                    return;
+                }
 
-                    if (expectedBuckets <= MAX_BUCKETS) {
-                        // No chunking needed - execute single query
-                        AggregateGroupByPeriodRequest request = createPeriodRequest(datatype, timeRange, period, dor);
-                        if (request == null) {
-                            callbackContext.error("Datatype not recognized " + datatype);
-                            return;
+                // closed buckets can be served from the cache, if requested
+                String cacheKey = null;
+                List<long[]> bounds = null;
+                int firstMissing = 0;
+                int lastMissing = -1;
+                long now = System.currentTimeMillis();
+                if (args.getJSONObject(0).optBoolean("cache", false) && plan.getBucketCount() <= MAX_BUCKETS) {
+                    cacheKey = datatype.toLowerCase() + "|" + bucketType.toLowerCase() + "|"
+                            + ZoneId.systemDefault().getId() + "|" + originsKey(dor);
+                    bounds = plan.bucketBounds();
+                    firstMissing = bounds.size();
+                    for (int i = 0; i < bounds.size(); i++) {
+                        long[] bound = bounds.get(i);
+                        // open buckets are always aggregated again
+                        if (bound[1] > now || aggregateCache.get(AggregateCache.key(cacheKey, bound[0], bound[1])) == null) {
+                            firstMissing = Math.min(firstMissing, i);
+                            lastMissing = i;
                         }
-
-                        List<AggregationResultGroupedByPeriod> response = BuildersKt.runBlocking(
-                                EmptyCoroutineContext.INSTANCE,
-                                (s, c) -> healthConnectClient.aggregateGroupByPeriod(request, c));
-
-                        Log.d(TAG, "Got data from query aggregated");
-
-                        for (AggregationResultGroupedByPeriod bucket : response) {
-                            JSONObject retObject = new JSONObject();
-                            long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-                            long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-                            retObject.put("startDate", stbkt);
-                            retObject.put("endDate", etbkt);
-                            setAggregatedVal(datatype, retObject, bucket.getResult());
-                            retBucketsArr.put(retObject);
+                    }
+                    if (lastMissing < 0) {
+                        Log.d(TAG, "Got data from query aggregated, all " + bounds.size() + " buckets cached");
+                        JSONArray cachedArr = cachedBuckets(cacheKey, bounds, 0, bounds.size());
+                        if (stream) {
+                            sendQueryPage(cachedArr, false, callbackContext);
+                            sendQueryPage(new JSONArray(), true, callbackContext);
+                        } else {
+                            callbackContext.success(cachedArr);
                         }
-                    } else {
-                        // Chunking needed - split into multiple queries
-                        Log.d(TAG, "Query requires " + expectedBuckets + " buckets, splitting into chunks");
-
-                        LocalDateTime currentStart = stLDT;
-                        LocalDateTime finalEnd = etLDT;
-
-                        // Calculate chunk size based on period type
-                        int chunksNeeded = (int) Math.ceil((double) expectedBuckets / SAFE_BUCKET_LIMIT);
-
-                        while (currentStart.isBefore(finalEnd)) {
-                            // Calculate chunk end time based on period type
-                            LocalDateTime chunkEnd;
-                            if (period.getDays() > 0) {
-                                chunkEnd = currentStart.plusDays((long) period.getDays() * SAFE_BUCKET_LIMIT);
-                            } else if (period.getMonths() > 0) {
-                                chunkEnd = currentStart.plusMonths((long) period.getMonths() * SAFE_BUCKET_LIMIT);
-                            } else if (period.getYears() > 0) {
-                                chunkEnd = currentStart.plusYears((long) period.getYears() * SAFE_BUCKET_LIMIT);
-                            } else {
-                                chunkEnd = finalEnd; // Fallback
-                            }
-
-                            // Don't exceed the final end time
-                            if (chunkEnd.isAfter(finalEnd)) {
-                                chunkEnd = finalEnd;
-                            }
-
-                            // Create time range for this chunk
-                            TimeRangeFilter chunkTimeRange = TimeRangeFilter.between(currentStart, chunkEnd);
-
-                            // Create and execute request for this chunk
-                            AggregateGroupByPeriodRequest chunkRequest = createPeriodRequest(datatype, chunkTimeRange,
-                                    period, dor);
-                            if (chunkRequest == null) {
-                                callbackContext.error("Datatype not recognized " + datatype);
-                                return;
-                            }
-
-                            List<AggregationResultGroupedByPeriod> chunkResponse = BuildersKt.runBlocking(
-                                    EmptyCoroutineContext.INSTANCE,
-                                    (s, c) -> healthConnectClient.aggregateGroupByPeriod(chunkRequest, c));
-
-                            // Add chunk results to the combined array
-                            for (AggregationResultGroupedByPeriod bucket : chunkResponse) {
-                                JSONObject retObject = new JSONObject();
-                                long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant()
-                                        .toEpochMilli();
-                                long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant()
-                                        .toEpochMilli();
-                                retObject.put("startDate", stbkt);
-                                retObject.put("endDate", etbkt);
-                                setAggregatedVal(datatype, retObject, bucket.getResult());
-                                retBucketsArr.put(retObject);
-                            }
+                        return;
+                    }
+                    // only the buckets between the first and the last missing one are aggregated
+                    plan = plan.subPlan(firstMissing, lastMissing + 1);
+                }
 
-                            // Move to next chunk
-                            currentStart = chunkEnd;
-                        }
+                // each chunk is a separate call to Health Connect, results are appended in order
+                List<Supplier<CompletableFuture<JSONArray>>> chunks = planChunks(handler, datatype, plan, dor);
+                if (chunks == null) {
+                    callbackContext.error("Datatype not recognized " + datatype);
+                    return;
+                }
 
-                        Log.d(TAG, "Got data from chunked query aggregated, total buckets: " + retBucketsArr.length());
+                // cached buckets before the first and after the last missing one
+                JSONArray headArr = bounds != null ? cachedBuckets(cacheKey, bounds, 0, firstMissing) : new JSONArray();
+                JSONArray tailArr = bounds != null ? cachedBuckets(cacheKey, bounds, lastMissing + 1, bounds.size())
+                        : new JSONArray();
+
+                // chunks are executed concurrently, and their buckets are put back in order
+                List<CompletableFuture<JSONArray>> chunkResults = runBounded(chunks, parallel);
+                JSONArray retBucketsArr = new JSONArray();
+                if (stream) {
+                    if (headArr.length() > 0) {
+                        sendQueryPage(headArr, false, callbackContext);
                     }
-
-                    callbackContext.success(retBucketsArr);
                 } else {
-                    // Duration-based bucketing (hour, minute)
-                    final int MAX_BUCKETS = 5000;
-                    final int SAFE_BUCKET_LIMIT = 4999; // Use 4999 to have a safe margin
-
-                    // Calculate expected bucket count
-                    long expectedBuckets = calculateExpectedBuckets(stZDT.toInstant(), etZDT.toInstant(), duration, null);
-
-                    JSONArray retBucketsArr = new JSONArray();
-
-                    if (expectedBuckets <= MAX_BUCKETS) {
-                        // No chunking needed - execute single query
-                        AggregateGroupByDurationRequest request = createDurationRequest(datatype, timeRange, duration, dor);
-                        if (request == null) {
-                            callbackContext.error("Datatype not recognized " + datatype);
-                            return;
+                    appendAll(retBucketsArr, headArr);
+                }
+                // fetched buckets are needed at the end only to fill the cache
+                boolean keepFetched = !stream || bounds != null;
+                JSONArray fetchedArr = stream ? new JSONArray() : retBucketsArr;
+                CompletableFuture<Void> all = CompletableFuture.completedFuture(null);
+                for (CompletableFuture<JSONArray> chunkResult : chunkResults) {
+                    all = all.thenCompose(v -> chunkResult).thenAccept(chunkBuckets -> {
+                        if (stream) {
+                            sendQueryPage(chunkBuckets, false, callbackContext);
                         }
-
-                        List<AggregationResultGroupedByDuration> response = BuildersKt.runBlocking(
-                                EmptyCoroutineContext.INSTANCE,
-                                (s, c) -> healthConnectClient.aggregateGroupByDuration(request, c));
-
-                        Log.d(TAG, "Got data from query aggregated");
-
-                        for (AggregationResultGroupedByDuration bucket : response) {
-                            JSONObject retObject = new JSONObject();
-                            long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-                            long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-                            retObject.put("startDate", stbkt);
-                            retObject.put("endDate", etbkt);
-                            setAggregatedVal(datatype, retObject, bucket.getResult());
-                            retBucketsArr.put(retObject);
+                        if (keepFetched) {
+                            appendAll(fetchedArr, chunkBuckets);
                         }
-                    } else {
-                        // Chunking needed - split into multiple queries
-                        Log.d(TAG, "Query requires " + expectedBuckets + " buckets, splitting into chunks");
-
-                        long chunkDurationMs = duration.toMillis() * SAFE_BUCKET_LIMIT;
-                        Instant currentStart = stZDT.toInstant();
-                        Instant finalEnd = etZDT.toInstant();
-
-                        while (currentStart.isBefore(finalEnd)) {
-                            // Calculate chunk end time
-                            Instant chunkEnd = Instant.ofEpochMilli(
-                                    Math.min(currentStart.toEpochMilli() + chunkDurationMs, finalEnd.toEpochMilli()));
-
-                            // Create time range for this chunk
-                            TimeRangeFilter chunkTimeRange = TimeRangeFilter.between(currentStart, chunkEnd);
-
-                            // Create and execute request for this chunk
-                            AggregateGroupByDurationRequest chunkRequest = createDurationRequest(datatype, chunkTimeRange,
-                                    duration, dor);
-                            if (chunkRequest == null) {
-                                callbackContext.error("Datatype not recognized " + datatype);
-                                return;
-                            }
-
-                            List<AggregationResultGroupedByDuration> chunkResponse = BuildersKt.runBlocking(
-                                    EmptyCoroutineContext.INSTANCE,
-                                    (s, c) -> healthConnectClient.aggregateGroupByDuration(chunkRequest, c));
-
-                            // Add chunk results to the combined array
-                            for (AggregationResultGroupedByDuration bucket : chunkResponse) {
-                                JSONObject retObject = new JSONObject();
-                                long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant()
-                                        .toEpochMilli();
-                                long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant()
-                                        .toEpochMilli();
-                                retObject.put("startDate", stbkt);
-                                retObject.put("endDate", etbkt);
-                                setAggregatedVal(datatype, retObject, bucket.getResult());
-                                retBucketsArr.put(retObject);
-                            }
-
-                            // Move to next chunk
-                            currentStart = chunkEnd;
+                    });
+                }
+                final String finalCacheKey = cacheKey;
+                final List<long[]> finalBounds = bounds;
+                final int finalFirstMissing = firstMissing;
+                final int finalLastMissing = lastMissing;
+                all.thenRun(() -> {
+                    Log.d(TAG, "Got data from query aggregated, " + chunks.size() + " chunk(s)");
+                    if (finalBounds != null) {
+                        storeClosedBuckets(finalCacheKey, finalBounds, finalFirstMissing, finalLastMissing,
+                                fetchedArr, now);
+                    }
+                    if (stream) {
+                        if (tailArr.length() > 0) {
+                            sendQueryPage(tailArr, false, callbackContext);
                         }
-
-                        Log.d(TAG, "Got data from chunked query aggregated, total buckets: " + retBucketsArr.length());
+                        // terminal message, no more pages will follow
+                        sendQueryPage(new JSONArray(), true, callbackContext);
+                    } else {
+                        appendAll(retBucketsArr, tailArr);
+                        callbackContext.success(retBucketsArr);
                     }
-
-                    callbackContext.success(retBucketsArr);
-                }
+                }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
             } else {
+                if (sleepStages) {
+                    aggregateSleepStages(Collections.singletonList(new long[] { st, et }), dor, false, false,
+                            callbackContext);
+                    return;
+                }
+
                 TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
 
-                AggregateRequest request;
-                // DATA_TYPE add here support for new data types
-                if (datatype.equalsIgnoreCase("steps")) {
-                    request = StepsFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("stairs")) {
-                    request = StairsFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("nutrition")) {
-                    request = NutritionFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-                    request = HydrationFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.toLowerCase().startsWith("nutrition.")) {
-                    request = NutritionXFunctions.prepareAggregateRequest(datatype, timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("weight")) {
-                    request = WeightFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("height")) {
-                    request = HeightFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("activity")) {
-                    Set<AggregateMetric<Duration>> metrics = new HashSet<>();
-                    metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-                    request = new AggregateRequest(metrics, timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("calories")) {
-                    Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-                    metrics.add(TotalCaloriesBurnedRecord.ENERGY_TOTAL);
-                    request = new AggregateRequest(metrics, timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("calories.active")) {
-                    Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-                    metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
-                    request = new AggregateRequest(metrics, timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("calories.basal")) {
-                    Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-                    metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
-                    request = new AggregateRequest(metrics, timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("distance")) {
-                    Set<AggregateMetric<Length>> metrics = new HashSet<>();
-                    metrics.add(DistanceRecord.DISTANCE_TOTAL);
-                    request = new AggregateRequest(metrics, timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("sleep")) {
-                    request = SleepFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("heart_rate")) {
-                    request = HeartRateFunctions.prepareAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("heart_rate.resting")) {
-                    request = HeartRateFunctions.prepareRestingAggregateRequest(timeRange, dor);
-                } else if (datatype.equalsIgnoreCase("blood_pressure")) {
-                    request = BloodPressureFunctions.prepareAggregateRequest(timeRange, dor);
-                } else {
+                AggregateRequest request = handler.prepareAggregateRequest(datatype, timeRange, dor);
+                if (request == null) {
                     callbackContext.error("Datatype not recognized " + datatype);
                     return;
                 }
 
-                AggregationResult response = BuildersKt.runBlocking(
-                        EmptyCoroutineContext.INSTANCE,
+                CompletableFuture<AggregationResult> response = launch(
                         (s, c) -> healthConnectClient.aggregate(request, c));
-                Log.d(TAG, "Got data from query aggregated");
-
-                JSONObject retObject = new JSONObject();
-                retObject.put("startDate", st);
-                retObject.put("endDate", et);
-                setAggregatedVal(datatype, retObject, response);
-
-                callbackContext.success(retObject);
+                response.thenAccept(result -> {
+                    Log.d(TAG, "Got data from query aggregated");
+                    try {
+                        JSONObject retObject = new JSONObject();
+                        retObject.put("startDate", st);
+                        retObject.put("endDate", et);
+                        handler.populateFromAggregatedQuery(result, retObject);
+
+                        callbackContext.success(retObject);
+                    } catch (JSONException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
             }
         } catch (JSONException ex) {
             Log.e(TAG, "Could not parse query object or write response object", ex);
             callbackContext.error("Could not parse query object or write response object");
-        } catch (InterruptedException ex2) {
-            Log.e(TAG, "Thread interrupted", ex2);
-            callbackContext.error("Thread interrupted" + ex2.getMessage());
-        }
-    }
-
-    private void setAggregatedVal(String datatype, JSONObject retObj, AggregationResult response) throws JSONException {
-        // DATA_TYPE add here new data types when extending
-        if (datatype.equalsIgnoreCase("steps")) {
-            StepsFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("stairs")) {
-            StairsFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("nutrition")) {
-            NutritionFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-            HydrationFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.toLowerCase().startsWith("nutrition.")) {
-            NutritionXFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("weight")) {
-            WeightFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("height")) {
-            HeightFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("activity")) {
-            Duration val = response.get(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-            if (val != null) {
-                long millis = val.getSeconds() * 1000;
-                retObj.put("value", millis);
-                retObj.put("unit", "ms");
-            } else {
-                retObj.put("value", 0);
-                retObj.put("unit", "ms");
-            }
-        } else if (datatype.equalsIgnoreCase("calories")) {
-            if (response.get(TotalCaloriesBurnedRecord.ENERGY_TOTAL) != null) {
-                double kcals = response.get(TotalCaloriesBurnedRecord.ENERGY_TOTAL).getKilocalories();
-                retObj.put("value", kcals);
-                retObj.put("unit", "kcal");
-            } else {
-                retObj.put("value", 0);
-                retObj.put("unit", "kcal");
-            }
-        } else if (datatype.equalsIgnoreCase("calories.active")) {
-            if (response.get(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL) != null) {
-                double kcals = response.get(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL).getKilocalories();
-                retObj.put("value", kcals);
-                retObj.put("unit", "kcal");
-            } else {
-                retObj.put("value", 0);
-                retObj.put("unit", "kcal");
-            }
-        } else if (datatype.equalsIgnoreCase("calories.basal")) {
-            if (response.get(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL) != null) {
-                double kcals = response.get(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL).getKilocalories();
-                retObj.put("value", kcals);
-                retObj.put("unit", "kcal");
-            } else {
-                retObj.put("value", 0);
-                retObj.put("unit", "kcal");
-            }
-        } else if (datatype.equalsIgnoreCase("distance")) {
-            if (response.get(DistanceRecord.DISTANCE_TOTAL) != null) {
-                double meters = response.get(DistanceRecord.DISTANCE_TOTAL).getMeters();
-                retObj.put("value", meters);
-                retObj.put("unit", "m");
-            } else {
-                retObj.put("value", 0);
-                retObj.put("unit", "kcal");
-            }
-        } else if (datatype.equalsIgnoreCase("sleep")) {
-            SleepFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("heart_rate")) {
-            HeartRateFunctions.populateFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("heart_rate.resting")) {
-            HeartRateFunctions.populateRestingFromAggregatedQuery(response, retObj);
-        } else if (datatype.equalsIgnoreCase("blood_pressure")) {
-            BloodPressureFunctions.populateFromAggregatedQuery(response, retObj);
-        } else {
-            LOG.e(TAG, "Data type not recognized " + datatype);
         }
     }
 
     /**
-     * Stores a datapoint
+     * How long before the start of an aggregated sleep query sessions are read,
+     * so that sessions that started before the range but end within it are included
+     */
+    private static final long SLEEP_SESSION_LOOKBACK = 24 * 60 * 60 * 1000;
+
+    /**
+     * Aggregates sleep by reading the sessions and summarizing their stages, which Health Connect
+     * can't aggregate by itself
      *
-     * @param args
+     * @param bounds   start and end of each bucket, in ms
+     * @param bucketed if false, there is a single bucket, which is returned as an object
+     * @param stream   if true, the buckets are sent as a single page followed by the terminal one
      */
-    private void store(final JSONArray args) {
-        try {
-            if (!args.getJSONObject(0).has("startDate")) {
-                callbackContext.error("Missing argument startDate");
-                return;
+    private void aggregateSleepStages(List<long[]> bounds, HashSet<DataOrigin> dor, boolean bucketed,
+            boolean stream, CallbackContext callbackContext) {
+        if (bounds.isEmpty()) {
+            if (stream) {
+                sendQueryPage(new JSONArray(), true, callbackContext);
+            } else {
+                callbackContext.success(new JSONArray());
             }
-            long st = args.getJSONObject(0).getLong("startDate");
+            return;
+        }
+        long st = bounds.get(0)[0];
+        long et = bounds.get(bounds.size() - 1)[1];
+        TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st - SLEEP_SESSION_LOOKBACK),
+                Instant.ofEpochMilli(et));
+        SleepAnalytics analytics = new SleepAnalytics(bounds);
+        // sessions are summarized page by page, only the summaries are kept
+        readPages(SleepFunctions.dataTypeToClass(), timeRange, dor, true, 1000, null, records -> {
+            for (Record record : records) {
+                analytics.add((SleepSessionRecord) record);
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+        }).thenRun(() -> {
+            Log.d(TAG, "Got data from sleep stages aggregation, " + bounds.size() + " bucket(s)");
+            try {
+                JSONArray buckets = analytics.toJSON();
+                if (stream) {
+                    sendQueryPage(buckets, false, callbackContext);
+                    sendQueryPage(new JSONArray(), true, callbackContext);
+                } else if (bucketed) {
+                    callbackContext.success(buckets);
+                } else {
+                    callbackContext.success(buckets.getJSONObject(0));
+                }
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+        }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
+    }
 
-            if (!args.getJSONObject(0).has("endDate")) {
-                callbackContext.error("Missing argument endDate");
-                return;
+    /**
+     * Max number of buckets returned by Health Connect in one aggregated query
+     */
+    private static final int MAX_BUCKETS = 5000;
+
+    /**
+     * Number of buckets requested in each chunk, when a query needs to be split
+     */
+    private static final int SAFE_BUCKET_LIMIT = 4999; // Use 4999 to have a safe margin
+
+    /**
+     * Splits an aggregated query into chunks that don't exceed the max number of buckets
+     *
+     * @return the chunks, in order, or null if the data type is not recognized
+     */
+    private List<Supplier<CompletableFuture<JSONArray>>> planChunks(DataTypeHandler handler, String datatype,
+            BucketPlan plan, HashSet<DataOrigin> dor) {
+        long bucketsPerChunk = plan.getBucketCount() <= MAX_BUCKETS ? MAX_BUCKETS : SAFE_BUCKET_LIMIT;
+        List<TimeRangeFilter> chunkRanges = plan.chunks(bucketsPerChunk);
+        if (chunkRanges.size() > 1) {
+            Log.d(TAG, "Query requires " + plan.getBucketCount() + " buckets, splitting into "
+                    + chunkRanges.size() + " chunks");
+        }
+
+        List<Supplier<CompletableFuture<JSONArray>>> chunks = new ArrayList<>(chunkRanges.size());
+        for (TimeRangeFilter chunkTimeRange : chunkRanges) {
+            if (plan.isPeriodBased()) {
+                AggregateGroupByPeriodRequest chunkRequest = handler.prepareAggregateGroupByPeriodRequest(datatype,
+                        chunkTimeRange, plan.getPeriod(), dor);
+                if (chunkRequest == null) {
+                    return null;
+                }
+                chunks.add(() -> aggregatePeriodChunk(handler, chunkRequest));
+            } else {
+                AggregateGroupByDurationRequest chunkRequest = handler.prepareAggregateGroupByDurationRequest(datatype,
+                        chunkTimeRange, plan.getDuration(), dor);
+                if (chunkRequest == null) {
+                    return null;
+                }
+                chunks.add(() -> aggregateDurationChunk(handler, chunkRequest));
             }
-            long et = args.getJSONObject(0).getLong("endDate");
+        }
+        return chunks;
+    }
 
-            if (!args.getJSONObject(0).has("dataType")) {
-                callbackContext.error("Missing argument dataType");
-                return;
+    /**
+     * Stores in the cache the closed buckets that have just been aggregated, buckets for which
+     * Health Connect returned nothing are stored as empty
+     *
+     * @param fetched buckets returned for the range between the first and the last missing bucket
+     * @param now     time at which the query started, in ms
+     */
+    private void storeClosedBuckets(String cacheKey, List<long[]> bounds, int firstMissing, int lastMissing,
+            JSONArray fetched, long now) {
+        Map<Long, JSONObject> fetchedByStart = new HashMap<>();
+        for (int i = 0; i < fetched.length(); i++) {
+            JSONObject bucket = fetched.optJSONObject(i);
+            fetchedByStart.put(bucket.optLong("startDate"), bucket);
+        }
+        for (int i = firstMissing; i <= lastMissing; i++) {
+            long[] bound = bounds.get(i);
+            if (bound[1] > now) {
+                continue;
             }
-            String datatype = args.getJSONObject(0).getString("dataType");
-            KClass<? extends Record> dt = dataTypeNameToClass(datatype);
-            if (dt == null) {
-                callbackContext.error("Datatype " + datatype + " not supported");
-                return;
+            JSONObject bucket = fetchedByStart.get(bound[0]);
+            if (bucket == null) {
+                aggregateCache.put(AggregateCache.key(cacheKey, bound[0], bound[1]), AggregateCache.EMPTY);
+            } else if (bucket.optLong("endDate") == bound[1]) {
+                aggregateCache.put(AggregateCache.key(cacheKey, bound[0], bound[1]), bucket);
             }
+        }
+    }
 
-            if (!args.getJSONObject(0).has("value")) {
-                callbackContext.error("Missing argument value");
-                return;
+    /**
+     * Gets the cached buckets with index between from (inclusive) and to (exclusive), skipping empty ones
+     */
+    private JSONArray cachedBuckets(String cacheKey, List<long[]> bounds, int from, int to) {
+        JSONArray cachedArr = new JSONArray();
+        for (int i = from; i < to; i++) {
+            long[] bound = bounds.get(i);
+            JSONObject bucket = aggregateCache.get(AggregateCache.key(cacheKey, bound[0], bound[1]));
+            if (bucket != null && bucket != AggregateCache.EMPTY) {
+                cachedArr.put(bucket);
             }
+        }
+        return cachedArr;
+    }
 
-            InsertRecordsResponse response;
-            List<Record> data = new LinkedList<>();
+    /**
+     * Executes an aggregated query grouped by period and converts the buckets
+     *
+     * @return a future that completes with the converted buckets
+     */
+    private CompletableFuture<JSONArray> aggregatePeriodChunk(DataTypeHandler handler,
+            AggregateGroupByPeriodRequest request) {
+        CompletableFuture<List<AggregationResultGroupedByPeriod>> response = launch(
+                (s, c) -> healthConnectClient.aggregateGroupByPeriod(request, c));
+        return response.thenApply(buckets -> {
+            JSONArray retBucketsArr = new JSONArray();
+            try {
+                for (AggregationResultGroupedByPeriod bucket : buckets) {
+                    JSONObject retObject = new JSONObject();
+                    long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    retObject.put("startDate", stbkt);
+                    retObject.put("endDate", etbkt);
+                    handler.populateFromAggregatedQuery(bucket.getResult(), retObject);
+                    retBucketsArr.put(retObject);
+                }
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+            return retBucketsArr;
+        });
+    }
 
-            // DATA_TYPE here we need to add support for each different data type
-            // TODO: we could add meta data when storing, including entry method, client ID
-            // and device
-
-            if (datatype.equalsIgnoreCase("steps")) {
-                StepsFunctions.prepareStoreRecords(args.getJSONObject(0), st, et, data);
-            } else if (datatype.equalsIgnoreCase("stairs")) {
-                StairsFunctions.prepareStoreRecords(args.getJSONObject(0), st, et, data);
-            } else if (datatype.equalsIgnoreCase("weight")) {
-                WeightFunctions.prepareStoreRecords(args.getJSONObject(0), st, data);
-            } else if (datatype.equalsIgnoreCase("height")) {
-                HeightFunctions.prepareStoreRecords(args.getJSONObject(0), st, data);
-            } else if (datatype.equalsIgnoreCase("fat_percentage")) {
-                double perc = args.getJSONObject(0).getDouble("value");
-
-                BodyFatRecord record = new BodyFatRecord(
-                        Instant.ofEpochMilli(st), null,
-                        new Percentage(perc),
-                        Metadata.manualEntry());
-                data.add(record);
-            } else if (datatype.equalsIgnoreCase("activity")) {
-                String activityStr = args.getJSONObject(0).getString("value");
-                int exerciseType = ActivityMapper.exerciseTypeFromActivity(activityStr);
-                String title = null;
-                String notes = null;
-                List<ExerciseSegment> segments = new LinkedList<>();
-                List<ExerciseLap> laps = new LinkedList<>();
-
-                ExerciseSessionRecord record = new ExerciseSessionRecord(
-                        Instant.ofEpochMilli(st), null,
-                        Instant.ofEpochMilli(et), null,
-                        Metadata.manualEntry(),
-                        exerciseType,
-                        title, notes,
-                        segments, laps);
-                data.add(record);
-            } else if (datatype.equalsIgnoreCase("calories")) {
-                double kcals = args.getJSONObject(0).getDouble("value");
-
-                TotalCaloriesBurnedRecord record = new TotalCaloriesBurnedRecord(
-                        Instant.ofEpochMilli(st), null,
-                        Instant.ofEpochMilli(et), null,
-                        Energy.kilocalories(kcals),
-                        Metadata.manualEntry());
-                data.add(record);
-            } else if (datatype.equalsIgnoreCase("calories.active")) {
-                double kcals = args.getJSONObject(0).getDouble("value");
-
-                ActiveCaloriesBurnedRecord record = new ActiveCaloriesBurnedRecord(
-                        Instant.ofEpochMilli(st), null,
-                        Instant.ofEpochMilli(et), null,
-                        Energy.kilocalories(kcals),
-                        Metadata.manualEntry());
-                data.add(record);
-            } else if (datatype.equalsIgnoreCase("calories.basal")) {
-                double kcals = args.getJSONObject(0).getDouble("value");
-                // convert kcals to power
-                double ms = (et - st);
-                double kcalsDay = kcals / (ms / (double) (86400000));
-                Power pow = Power.kilocaloriesPerDay(kcalsDay);
-
-                BasalMetabolicRateRecord record = new BasalMetabolicRateRecord(
-                        Instant.ofEpochMilli(st), null,
-                        pow,
-                        Metadata.manualEntry());
-                data.add(record);
-            } else if (datatype.equalsIgnoreCase("blood_glucose")) {
-                JSONObject glucoseobj = args.getJSONObject(0).getJSONObject("value");
-                BloodGlucoseFunctions.prepareStoreRecords(glucoseobj, st, data);
-            } else if (datatype.equalsIgnoreCase("blood_pressure")) {
-                JSONObject pressureobj = args.getJSONObject(0).getJSONObject("value");
-                BloodPressureFunctions.prepareStoreRecords(pressureobj, st, data);
-            } else if (datatype.equalsIgnoreCase("distance")) {
-                double meters = args.getJSONObject(0).getDouble("value");
-                Length len = Length.meters(meters);
-
-                DistanceRecord record = new DistanceRecord(
-                        Instant.ofEpochMilli(st), null,
-                        Instant.ofEpochMilli(et), null,
-                        len,
-                        Metadata.manualEntry());
-
-                data.add(record);
-            } else if (datatype.equalsIgnoreCase("sleep")) {
-                SleepFunctions.prepareStoreRecords(args.getJSONObject(0), data);
-            } else if (datatype.equalsIgnoreCase("heart_rate")) {
-                HeartRateFunctions.prepareStoreRecords(args.getJSONObject(0), st, et, data);
-            } else if (datatype.equalsIgnoreCase("heart_rate.resting")) {
-                HeartRateFunctions.prepareRestingStoreRecords(args.getJSONObject(0), st, data);
-            } else if (datatype.equalsIgnoreCase("heart_rate.variability")) {
-                HeartRateFunctions.prepareVariabilityStoreRecords(args.getJSONObject(0), st, data);
-            } else if (datatype.equalsIgnoreCase("nutrition")) {
-                NutritionFunctions.prepareStoreRecords(args.getJSONObject(0), st, et, data);
-            } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-                HydrationFunctions.prepareStoreRecords(args.getJSONObject(0), data);
-            } else if (datatype.toLowerCase().startsWith("nutrition.")) {
-                NutritionXFunctions.prepareStoreRecords(datatype, args.getJSONObject(0), st, et, data);
-            } else {
-                callbackContext.error("Datatype not supported " + datatype);
+    /**
+     * Executes an aggregated query grouped by duration and converts the buckets
+     *
+     * @return a future that completes with the converted buckets
+     */
+    private CompletableFuture<JSONArray> aggregateDurationChunk(DataTypeHandler handler,
+            AggregateGroupByDurationRequest request) {
+        CompletableFuture<List<AggregationResultGroupedByDuration>> response = launch(
+                (s, c) -> healthConnectClient.aggregateGroupByDuration(request, c));
+        return response.thenApply(buckets -> {
+            JSONArray retBucketsArr = new JSONArray();
+            try {
+                for (AggregationResultGroupedByDuration bucket : buckets) {
+                    JSONObject retObject = new JSONObject();
+                    long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    retObject.put("startDate", stbkt);
+                    retObject.put("endDate", etbkt);
+                    handler.populateFromAggregatedQuery(bucket.getResult(), retObject);
+                    retBucketsArr.put(retObject);
+                }
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+            return retBucketsArr;
+        });
+    }
+
+    /**
+     * Stores a datapoint
+     *
+     * @param args
+     */
+    private void store(final JSONArray args, CallbackContext callbackContext) {
+        try {
+            List<Record> data = new LinkedList<>();
+            String datatype;
+            try {
+                datatype = prepareStoreRecords(args.getJSONObject(0), data);
+            } catch (IllegalArgumentException ex) {
+                callbackContext.error(ex.getMessage());
                 return;
             }
 
-            response = BuildersKt.runBlocking(
-                    EmptyCoroutineContext.INSTANCE,
+            CompletableFuture<InsertRecordsResponse> response = launch(
                     (s, c) -> healthConnectClient.insertRecords(data, c));
+            response.thenAccept(inserted -> {
+                Log.d(TAG, "Data written of type " + datatype);
+                queryCache.invalidate(datatype);
+                aggregateCache.invalidate(datatype);
 
-            Log.d(TAG, "Data written of type " + datatype);
+                String id = inserted.getRecordIdsList().get(0);
 
-            String id = response.getRecordIdsList().get(0);
+                callbackContext.success(id);
+            }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
 
-            callbackContext.success(id);
+        } catch (JSONException ex) {
+            callbackContext.error("Cannot parse request object " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Converts a sample coming from JS into the records to be inserted
+     *
+     * @param storeObj the sample
+     * @param data     list where the records are added
+     * @return the data type of the sample
+     * @throws IllegalArgumentException if an argument is missing or the data type is not supported
+     */
+    private String prepareStoreRecords(JSONObject storeObj, List<Record> data) throws JSONException {
+        if (!storeObj.has("startDate")) {
+            throw new IllegalArgumentException("Missing argument startDate");
+        }
+        long st = storeObj.getLong("startDate");
+
+        if (!storeObj.has("endDate")) {
+            throw new IllegalArgumentException("Missing argument endDate");
+        }
+        long et = storeObj.getLong("endDate");
+
+        if (!storeObj.has("dataType")) {
+            throw new IllegalArgumentException("Missing argument dataType");
+        }
+        String datatype = storeObj.getString("dataType");
+        DataTypeHandler handler = DataTypeRegistry.forName(datatype);
+        if (handler == null) {
+            throw new IllegalArgumentException("Datatype " + datatype + " not supported");
+        }
+
+        if (!storeObj.has("value")) {
+            throw new IllegalArgumentException("Missing argument value");
+        }
+
+        // TODO: we could add meta data when storing, including entry method, client ID
+        // and device
+        handler.prepareStoreRecords(datatype, storeObj, st, et, data);
+
+        return datatype;
+    }
+
+    /**
+     * Records inserted with one call to Health Connect, with the index of the sample each one comes from
+     */
+    private static final class StoreBatch {
+        final List<Record> records = new ArrayList<>();
+        // index in the input array of each sample in the batch
+        final List<Integer> sampleIndexes = new ArrayList<>();
+        // index in the batch of the first record of each sample
+        final List<Integer> recordOffsets = new ArrayList<>();
+    }
 
+    /**
+     * Stores an array of samples, of any data type. Samples are converted off the calling thread
+     * and inserted in batches of at most STORE_BATCH_SIZE records, one batch after the other.
+     * The result contains the id of each stored sample and the error of each sample that could not be stored.
+     *
+     * @param args
+     */
+    private void storeBatch(final JSONArray args, CallbackContext callbackContext) {
+        JSONArray samples;
+        try {
+            samples = args.getJSONArray(0);
         } catch (JSONException ex) {
             callbackContext.error("Cannot parse request object " + ex.getMessage());
-        } catch (InterruptedException ex2) {
-            callbackContext.error("Thread interrupted" + ex2.getMessage());
+            return;
+        }
+        insertSamples(samples, null)
+                .thenAccept(callbackContext::success)
+                .exceptionally(ex -> sendAsyncError(callbackContext, ex));
+    }
+
+    /**
+     * Adds a sample to the store queue and returns immediately with the number of queued samples.
+     * The queue is flushed when it reaches STORE_QUEUE_FLUSH_SIZE samples, or STORE_QUEUE_FLUSH_DELAY ms
+     * after the first sample was queued.
+     *
+     * @param args
+     */
+    private void storeQueued(final JSONArray args, CallbackContext callbackContext) {
+        JSONObject sample;
+        try {
+            sample = args.getJSONObject(0);
+        } catch (JSONException ex) {
+            callbackContext.error("Cannot parse request object " + ex.getMessage());
+            return;
+        }
+        storeQueueExecutor.execute(() -> {
+            int queued;
+            try {
+                queued = storeQueue.enqueue(sample);
+            } catch (JSONException ex) {
+                callbackContext.error("Cannot parse request object " + ex.getMessage());
+                return;
+            }
+            if (queued >= STORE_QUEUE_FLUSH_SIZE) {
+                flushStoreQueue();
+            } else {
+                scheduleStoreQueueFlush();
+            }
+            callbackContext.success(queued);
+        });
+    }
+
+    /**
+     * Schedules a flush of the store queue, unless one is already scheduled.
+     * Must be called from the store queue thread.
+     */
+    private void scheduleStoreQueueFlush() {
+        scheduleStoreQueueFlush(STORE_QUEUE_FLUSH_DELAY);
+    }
+
+    private void scheduleStoreQueueFlush(long delay) {
+        if (scheduledStoreQueueFlush == null || scheduledStoreQueueFlush.isDone()) {
+            scheduledStoreQueueFlush = storeQueueExecutor.schedule(this::flushStoreQueue, delay,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Schedules another flush of a store queue that could not be flushed, waiting longer after each failure.
+     * Must be called from the store queue thread.
+     */
+    private void retryStoreQueueFlush() {
+        long delay = storeQueueRetryDelay;
+        storeQueueRetryDelay = Math.min(delay * 2, STORE_QUEUE_MAX_RETRY_DELAY);
+        Log.d(TAG, "Flushing the store queue again in " + delay + " ms");
+        scheduleStoreQueueFlush(delay);
+    }
+
+    /**
+     * Stores the queued samples, after the previous flush has completed.
+     * The queue and its journal are left untouched if Health Connect is not available or if a write permission
+     * is missing. Samples of batches that Health Connect rejects as a whole are put back in the queue.
+     * In both cases the flush is tried again later, with backoff.
+     * Must be called from the store queue thread.
+     *
+     * @return a future that completes with the result of storing the flushed samples, as in storeBatch()
+     */
+    private CompletableFuture<JSONObject> flushStoreQueue() {
+        if (scheduledStoreQueueFlush != null) {
+            scheduledStoreQueueFlush.cancel(false);
+            scheduledStoreQueueFlush = null;
+        }
+        CompletableFuture<JSONObject> flush = lastStoreQueueFlush.handle((res, ex) -> null)
+                .thenComposeAsync(v -> {
+                    if (storeQueue.size() == 0) {
+                        return CompletableFuture.completedFuture(emptyStoreResult());
+                    }
+                    if (HealthConnectClient.getSdkStatus(cordova.getContext()) != HealthConnectClient.SDK_AVAILABLE) {
+                        throw new CompletionException(
+                                new IllegalStateException("Health Connect is not available, samples are kept queued"));
+                    }
+                    connectAPI();
+                    return getGrantedPermissions().thenComposeAsync(this::drainStoreQueue, storeQueueExecutor);
+                }, storeQueueExecutor);
+        // most flushes are not started by JS, failures are handled here for all of them
+        flush.whenCompleteAsync((res, ex) -> {
+            if (ex != null) {
+                Log.e(TAG, "Could not flush store queue", ex);
+                retryStoreQueueFlush();
+            }
+        }, storeQueueExecutor);
+        lastStoreQueueFlush = flush;
+        return flush;
+    }
+
+    /**
+     * Drains the store queue and stores the samples, if all the needed write permissions are granted.
+     * Must be called from the store queue thread.
+     *
+     * @param grantedPermissions permissions currently granted to the app
+     */
+    private CompletableFuture<JSONObject> drainStoreQueue(Set<String> grantedPermissions) {
+        for (String datatype : storeQueue.dataTypes()) {
+            KClass<? extends Record> recordClass = dataTypeNameToClass(datatype);
+            // unsupported data types are reported as errors of their samples
+            if (recordClass != null
+                    && !grantedPermissions.contains(HealthPermission.getWritePermission(recordClass))) {
+                throw new CompletionException(new SecurityException(
+                        "Missing write permission for " + datatype + ", samples are kept queued"));
+            }
+        }
+        JSONArray samples = storeQueue.drain();
+        List<Integer> failedBatchSamples = new ArrayList<>();
+        Log.d(TAG, "Flushing store queue with " + samples.length() + " samples");
+        return insertSamples(samples, failedBatchSamples).whenCompleteAsync((res, ex) -> {
+            if (ex != null) {
+                // nothing was stored, the journal still contains the samples
+                storeQueue.restore(samples);
+                return;
+            }
+            if (!failedBatchSamples.isEmpty()) {
+                // the failure may be temporary, try again at the next flush
+                JSONArray retry = new JSONArray();
+                for (int i : failedBatchSamples) {
+                    retry.put(samples.opt(i));
+                }
+                Log.e(TAG, "Store queue flushed, " + retry.length() + " samples put back in the queue");
+                storeQueue.restore(retry);
+                retryStoreQueueFlush();
+            } else {
+                storeQueueRetryDelay = STORE_QUEUE_FLUSH_DELAY;
+            }
+            // the journal keeps the samples put back and the ones added in the meantime
+            storeQueue.flushed();
+            JSONArray errors = res.optJSONArray("errors");
+            if (errors != null && errors.length() > failedBatchSamples.size()) {
+                Log.e(TAG, "Store queue flushed, " + (errors.length() - failedBatchSamples.size())
+                        + " samples could not be stored: " + errors);
+            }
+        }, storeQueueExecutor);
+    }
+
+    private static JSONObject emptyStoreResult() {
+        JSONObject retObj = new JSONObject();
+        try {
+            retObj.put("ids", new JSONArray());
+            retObj.put("errors", new JSONArray());
+        } catch (JSONException ex) {
+            // cannot happen with non-null keys
+            throw new CompletionException(ex);
         }
+        return retObj;
+    }
+
+    /**
+     * Converts and inserts an array of samples
+     *
+     * @param samples            samples coming from JS, of any data type
+     * @param failedBatchSamples if not null, collects the indexes of the samples whose batch was rejected
+     *                           as a whole by Health Connect, which may be stored by trying again
+     * @return a future that completes with the ids of the stored samples and the errors of the other ones
+     */
+    private CompletableFuture<JSONObject> insertSamples(JSONArray samples, List<Integer> failedBatchSamples) {
+        String[] ids = new String[samples.length()];
+        String[] errors = new String[samples.length()];
+        Set<String> datatypes = ConcurrentHashMap.newKeySet();
+
+        CompletableFuture<List<StoreBatch>> prepared = CompletableFuture.supplyAsync(() -> {
+            List<StoreBatch> batches = new ArrayList<>();
+            StoreBatch batch = new StoreBatch();
+            for (int i = 0; i < samples.length(); i++) {
+                List<Record> data = new LinkedList<>();
+                try {
+                    datatypes.add(prepareStoreRecords(samples.getJSONObject(i), data));
+                } catch (IllegalArgumentException ex) {
+                    errors[i] = ex.getMessage();
+                    continue;
+                } catch (JSONException ex) {
+                    errors[i] = "Cannot parse request object " + ex.getMessage();
+                    continue;
+                }
+                if (!batch.records.isEmpty() && batch.records.size() + data.size() > STORE_BATCH_SIZE) {
+                    batches.add(batch);
+                    batch = new StoreBatch();
+                }
+                batch.sampleIndexes.add(i);
+                batch.recordOffsets.add(batch.records.size());
+                batch.records.addAll(data);
+            }
+            if (!batch.records.isEmpty()) {
+                batches.add(batch);
+            }
+            return batches;
+        }, healthConnectExecutor);
+
+        return prepared.thenCompose(batches -> {
+            CompletableFuture<Void> all = CompletableFuture.completedFuture(null);
+            for (StoreBatch batch : batches) {
+                all = all.thenCompose(v -> {
+                    CompletableFuture<InsertRecordsResponse> response = launch(
+                            (s, c) -> healthConnectClient.insertRecords(batch.records, c));
+                    return response.handle((inserted, ex) -> {
+                        for (int j = 0; j < batch.sampleIndexes.size(); j++) {
+                            int i = batch.sampleIndexes.get(j);
+                            if (ex != null) {
+                                // the whole batch fails together
+                                errors[i] = asyncErrorMessage(ex);
+                                if (failedBatchSamples != null) {
+                                    failedBatchSamples.add(i);
+                                }
+                            } else {
+                                ids[i] = inserted.getRecordIdsList().get(batch.recordOffsets.get(j));
+                            }
+                        }
+                        return null;
+                    });
+                });
+            }
+            return all;
+        }).thenApply(v -> {
+            for (String datatype : datatypes) {
+                queryCache.invalidate(datatype);
+                aggregateCache.invalidate(datatype);
+            }
+            JSONArray idsArr = new JSONArray();
+            JSONArray errorsArr = new JSONArray();
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    idsArr.put(ids[i] != null ? ids[i] : JSONObject.NULL);
+                    if (errors[i] != null) {
+                        JSONObject errorObj = new JSONObject();
+                        errorObj.put("index", i);
+                        errorObj.put("error", errors[i]);
+                        errorsArr.put(errorObj);
+                    }
+                }
+                JSONObject retObj = new JSONObject();
+                retObj.put("ids", idsArr);
+                retObj.put("errors", errorsArr);
+                Log.d(TAG, "Batch written - " + (ids.length - errorsArr.length()) + " samples stored, "
+                        + errorsArr.length() + " failed");
+                return retObj;
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+        });
     }
 
     /**
@@ -1384,8 +2245,20 @@ public class HealthPlugin extends CordovaPlugin {
      *
      * @param args
      */
-    private void delete(final JSONArray args) {
+    private void delete(final JSONArray args, CallbackContext callbackContext) {
         try {
+            // arrays of ids and ranges are deleted in groups
+            if (args.get(0) instanceof JSONArray) {
+                deleteMany(args.getJSONArray(0), callbackContext);
+                return;
+            }
+            if (args.getJSONObject(0).has("ids")) {
+                JSONArray items = new JSONArray();
+                items.put(args.getJSONObject(0));
+                deleteMany(items, callbackContext);
+                return;
+            }
+
             String datatype = args.getJSONObject(0).getString("dataType");
             KClass<? extends Record> dt = dataTypeNameToClass(datatype);
             if (dt == null) {
@@ -1398,12 +2271,15 @@ public class HealthPlugin extends CordovaPlugin {
 
                 List<String> recordids = new LinkedList<>();
                 recordids.add(id);
-                BuildersKt.runBlocking(
-                        EmptyCoroutineContext.INSTANCE,
+                CompletableFuture<Unit> deleted = launch(
                         (s, c) -> healthConnectClient.deleteRecords(dt, recordids, new LinkedList<>(), c));
-                Log.d(TAG, "Data deleted by ID of type " + datatype);
+                deleted.thenRun(() -> {
+                    Log.d(TAG, "Data deleted by ID of type " + datatype);
+                    queryCache.invalidate(datatype);
+                    aggregateCache.invalidate(datatype);
 
-                callbackContext.success();
+                    callbackContext.success();
+                }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
             } else {
                 if (!args.getJSONObject(0).has("startDate")) {
                     callbackContext.error("Missing argument startDate");
@@ -1418,17 +2294,315 @@ public class HealthPlugin extends CordovaPlugin {
                 final long et = args.getJSONObject(0).getLong("endDate");
 
                 TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
-                BuildersKt.runBlocking(
-                        EmptyCoroutineContext.INSTANCE,
+                CompletableFuture<Unit> deleted = launch(
                         (s, c) -> healthConnectClient.deleteRecords(dt, timeRange, c));
-                Log.d(TAG, "Data deleted by time range of type " + datatype);
+                deleted.thenRun(() -> {
+                    Log.d(TAG, "Data deleted by time range of type " + datatype);
+                    queryCache.invalidate(datatype);
+                    aggregateCache.invalidate(datatype);
 
-                callbackContext.success();
+                    callbackContext.success();
+                }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
             }
         } catch (JSONException ex) {
             callbackContext.error("Cannot parse request object " + ex.getMessage());
-        } catch (InterruptedException ex2) {
-            callbackContext.error("Thread interrupted" + ex2.getMessage());
         }
     }
+
+    /**
+     * Records to be deleted for one record class
+     */
+    private static final class DeleteGroup {
+        final KClass<? extends Record> dt;
+        final Set<String> datatypes = new HashSet<>();
+        final List<String> ids = new ArrayList<>();
+        final List<long[]> ranges = new ArrayList<>();
+
+        DeleteGroup(KClass<? extends Record> dt) {
+            this.dt = dt;
+        }
+    }
+
+    /**
+     * Deletes several sets of datapoints, each identified by ids or by a time range.
+     * Ids are grouped by record class, and overlapping ranges of the same class are merged,
+     * so that the number of calls to Health Connect is kept to a minimum.
+     *
+     * @param items objects like { dataType, id }, { dataType, ids } or { dataType, startDate, endDate }
+     */
+    private void deleteMany(JSONArray items, CallbackContext callbackContext) throws JSONException {
+        Map<KClass<? extends Record>, DeleteGroup> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            if (!item.has("dataType")) {
+                callbackContext.error("Missing argument dataType");
+                return;
+            }
+            String datatype = item.getString("dataType");
+            KClass<? extends Record> dt = dataTypeNameToClass(datatype);
+            if (dt == null) {
+                callbackContext.error("Datatype " + datatype + " not supported");
+                return;
+            }
+            DeleteGroup group = groups.get(dt);
+            if (group == null) {
+                group = new DeleteGroup(dt);
+                groups.put(dt, group);
+            }
+            group.datatypes.add(datatype);
+
+            if (item.has("id")) {
+                group.ids.add(item.getString("id"));
+            } else if (item.has("ids")) {
+                JSONArray ids = item.getJSONArray("ids");
+                for (int j = 0; j < ids.length(); j++) {
+                    group.ids.add(ids.getString(j));
+                }
+            } else {
+                if (!item.has("startDate")) {
+                    callbackContext.error("Missing argument startDate");
+                    return;
+                }
+                if (!item.has("endDate")) {
+                    callbackContext.error("Missing argument endDate");
+                    return;
+                }
+                group.ranges.add(new long[] { item.getLong("startDate"), item.getLong("endDate") });
+            }
+        }
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger deletedIds = new AtomicInteger();
+        AtomicInteger deletedRanges = new AtomicInteger();
+        JSONArray errors = new JSONArray();
+
+        // calls are executed one after the other
+        CompletableFuture<Void> all = CompletableFuture.completedFuture(null);
+        for (DeleteGroup group : groups.values()) {
+            String groupName = String.join(",", group.datatypes);
+            for (int from = 0; from < group.ids.size(); from += DELETE_BATCH_SIZE) {
+                List<String> recordIds = group.ids.subList(from, Math.min(from + DELETE_BATCH_SIZE, group.ids.size()));
+                all = all.thenCompose(v -> {
+                    CompletableFuture<Unit> deleted = launch(
+                            (s, c) -> healthConnectClient.deleteRecords(group.dt, recordIds, new LinkedList<>(), c));
+                    return deleted.handle((res, ex) -> {
+                        calls.incrementAndGet();
+                        if (ex != null) {
+                            addDeleteError(errors, groupName, ex);
+                        } else {
+                            deletedIds.addAndGet(recordIds.size());
+                            invalidateCaches(group.datatypes);
+                        }
+                        return null;
+                    });
+                });
+            }
+            for (long[] range : mergeRanges(group.ranges)) {
+                TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(range[0]),
+                        Instant.ofEpochMilli(range[1]));
+                all = all.thenCompose(v -> {
+                    CompletableFuture<Unit> deleted = launch(
+                            (s, c) -> healthConnectClient.deleteRecords(group.dt, timeRange, c));
+                    return deleted.handle((res, ex) -> {
+                        calls.incrementAndGet();
+                        if (ex != null) {
+                            addDeleteError(errors, groupName, ex);
+                        } else {
+                            deletedRanges.incrementAndGet();
+                            invalidateCaches(group.datatypes);
+                        }
+                        return null;
+                    });
+                });
+            }
+        }
+
+        all.thenRun(() -> {
+            Log.d(TAG, "Data deleted in " + calls.get() + " calls - " + deletedIds.get() + " ids, "
+                    + deletedRanges.get() + " ranges, " + errors.length() + " errors");
+            try {
+                JSONObject retObj = new JSONObject();
+                retObj.put("calls", calls.get());
+                retObj.put("deletedIds", deletedIds.get());
+                retObj.put("deletedRanges", deletedRanges.get());
+                retObj.put("errors", errors);
+                callbackContext.success(retObj);
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+        }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
+    }
+
+    private static void addDeleteError(JSONArray errors, String datatype, Throwable ex) {
+        JSONObject errorObj = new JSONObject();
+        try {
+            errorObj.put("dataType", datatype);
+            errorObj.put("error", asyncErrorMessage(ex));
+        } catch (JSONException jex) {
+            throw new CompletionException(jex);
+        }
+        synchronized (errors) {
+            errors.put(errorObj);
+        }
+    }
+
+    /**
+     * Sorts time ranges and merges the ones that overlap or touch
+     */
+    private static List<long[]> mergeRanges(List<long[]> ranges) {
+        List<long[]> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, (r1, r2) -> Long.compare(r1[0], r2[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[] { range[0], range[1] });
+            }
+        }
+        return merged;
+    }
+
+    private void invalidateCaches(Set<String> datatypes) {
+        for (String datatype : datatypes) {
+            queryCache.invalidate(datatype);
+            aggregateCache.invalidate(datatype);
+        }
+    }
+
+    /**
+     * Creates a new changes token for a data type and stores it as the starting point of the next getChanges()
+     *
+     * @param args
+     */
+    private void getChangesToken(final JSONArray args, CallbackContext callbackContext) {
+        try {
+            if (!args.getJSONObject(0).has("dataType")) {
+                callbackContext.error("Missing argument dataType");
+                return;
+            }
+            String datatype = args.getJSONObject(0).getString("dataType");
+            KClass<? extends Record> dt = dataTypeNameToClass(datatype);
+            if (dt == null) {
+                callbackContext.error("Datatype " + datatype + " not supported");
+                return;
+            }
+
+            Set<KClass<? extends Record>> types = new HashSet<>();
+            types.add(dt);
+            ChangesTokenRequest request = new ChangesTokenRequest(types, new HashSet<>());
+            CompletableFuture<String> token = launch((s, c) -> healthConnectClient.getChangesToken(request, c));
+            token.thenAccept(tk -> {
+                changesTokenStore.put(datatype, tk);
+                Log.d(TAG, "Changes token created for type " + datatype);
+
+                callbackContext.success(tk);
+            }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
+        } catch (JSONException ex) {
+            callbackContext.error("Cannot parse request object " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Gets the records of a data type that have been inserted, updated or deleted since the stored changes token,
+     * then moves the stored token forward
+     *
+     * @param args
+     */
+    private void getChanges(final JSONArray args, CallbackContext callbackContext) {
+        try {
+            JSONObject changesObj = args.getJSONObject(0);
+            if (!changesObj.has("dataType")) {
+                callbackContext.error("Missing argument dataType");
+                return;
+            }
+            String datatype = changesObj.getString("dataType");
+            DataTypeHandler handler = DataTypeRegistry.forName(datatype);
+            if (handler == null) {
+                callbackContext.error("Datatype " + datatype + " not supported");
+                return;
+            }
+            boolean keepSession = changesObj.optBoolean("sleepSession", false);
+            boolean allowManual = !changesObj.optBoolean("filterOutUserInput", false);
+
+            String token = changesTokenStore.get(datatype);
+            if (token == null) {
+                callbackContext.error("No changes token for " + datatype + ", call getChangesToken() first");
+                return;
+            }
+
+            JSONArray upserted = new JSONArray();
+            JSONArray deleted = new JSONArray();
+            AtomicInteger changeCount = new AtomicInteger();
+            readChanges(datatype, token, changes -> {
+                changeCount.addAndGet(changes.size());
+                List<Record> records = new ArrayList<>();
+                for (Change change : changes) {
+                    if (change instanceof UpsertionChange) {
+                        records.add(((UpsertionChange) change).getRecord());
+                    } else if (change instanceof DeletionChange) {
+                        deleted.put(((DeletionChange) change).getRecordId());
+                    }
+                }
+                populateFromRecords(records, handler, datatype, allowManual, Collections.emptySet(), keepSession,
+                        upserted);
+            }).thenAccept(nextToken -> {
+                // the token is moved forward only once all changes have been converted
+                changesTokenStore.put(datatype, nextToken);
+                if (changeCount.get() > 0) {
+                    queryCache.invalidate(datatype);
+                    aggregateCache.invalidate(datatype);
+                }
+                Log.d(TAG, "Changes read of type " + datatype + " - " + upserted.length() + " upserted, "
+                        + deleted.length() + " deleted");
+
+                JSONObject retObj = new JSONObject();
+                try {
+                    retObj.put("upserted", upserted);
+                    retObj.put("deleted", deleted);
+                } catch (JSONException ex) {
+                    throw new CompletionException(ex);
+                }
+                callbackContext.success(retObj);
+            }).exceptionally(ex -> sendAsyncError(callbackContext, ex));
+        } catch (JSONException ex) {
+            callbackContext.error("Cannot parse request object " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Consumer of the changes contained in one page of a changes response
+     */
+    private interface ChangesHandler {
+        void onChanges(List<Change> changes) throws JSONException;
+    }
+
+    /**
+     * Reads the changes following a token, page by page
+     *
+     * @param datatype data type the token refers to
+     * @param token    the changes token to start from
+     * @param handler  called with the changes of each page, in order
+     * @return a future that completes with the token to be used for the next read
+     */
+    private CompletableFuture<String> readChanges(String datatype, String token, ChangesHandler handler) {
+        CompletableFuture<ChangesResponse> page = launch((s, c) -> healthConnectClient.getChanges(token, c));
+        return page.thenCompose(response -> {
+            if (response.getChangesTokenExpired()) {
+                changesTokenStore.remove(datatype);
+                throw new CompletionException(new IllegalStateException("Changes token expired for " + datatype
+                        + ", query the data again and call getChangesToken()"));
+            }
+            try {
+                handler.onChanges(response.getChanges());
+            } catch (JSONException ex) {
+                throw new CompletionException(ex);
+            }
+            if (!response.getHasMore()) {
+                return CompletableFuture.completedFuture(response.getNextChangesToken());
+            }
+            return readChanges(datatype, response.getNextChangesToken(), handler);
+        });
+    }
 }
@@ -0,0 +1,100 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.HeartRateRecord;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reduces the heart rate samples of a query to at most a given number of points, used by queries with maxPoints.
+ * The time range is split into equal buckets and only the min, max, sum and count of each bucket are kept,
+ * so that samples can be added page by page without keeping them in memory.
+ */
+public class HeartRateDownsampler {
+
+    /**
+     * Max number of points that can be requested, the buffers of all buckets are allocated upfront
+     */
+    public static final int MAX_POINTS = 10000;
+
+    private final long st;
+    private final long et;
+    private final long bucketMs;
+    private final int bucketCount;
+
+    private final long[] min;
+    private final long[] max;
+    private final long[] sum;
+    private final int[] count;
+
+    /**
+     * @param st        start of the range, in ms
+     * @param et        end of the range, in ms
+     * @param maxPoints max number of points returned
+     */
+    public HeartRateDownsampler(long st, long et, int maxPoints) {
+        this.st = st;
+        this.et = et;
+        long range = Math.max(1, et - st);
+        // buckets are at least 1 ms long
+        this.bucketMs = Math.max(1, (range + maxPoints - 1) / maxPoints);
+        this.bucketCount = (int) ((range + bucketMs - 1) / bucketMs);
+        this.min = new long[bucketCount];
+        this.max = new long[bucketCount];
+        this.sum = new long[bucketCount];
+        this.count = new int[bucketCount];
+    }
+
+    /**
+     * Adds the samples of a record, samples outside of the range are ignored
+     */
+    public void add(HeartRateRecord record) {
+        for (HeartRateRecord.Sample sample : record.getSamples()) {
+            add(sample.getTime().toEpochMilli(), sample.getBeatsPerMinute());
+        }
+    }
+
+    public void add(long time, long bpm) {
+        if (time < st || time >= et) {
+            return;
+        }
+        int i = (int) ((time - st) / bucketMs);
+        if (count[i] == 0) {
+            min[i] = bpm;
+            max[i] = bpm;
+        } else {
+            min[i] = Math.min(min[i], bpm);
+            max[i] = Math.max(max[i], bpm);
+        }
+        sum[i] += bpm;
+        count[i]++;
+    }
+
+    /**
+     * @param ascending if true, points are sorted from the oldest to the newest
+     * @return one point per bucket that contains samples, the value is the average,
+     *         for example: { startDate: 1700000000000, endDate: 1700000060000, value: 72.5, min: 70, max: 75,
+     *         count: 60, unit: 'bpm' }
+     */
+    public JSONArray toJSON(boolean ascending) throws JSONException {
+        JSONArray points = new JSONArray();
+        for (int n = 0; n < bucketCount; n++) {
+            int i = ascending ? n : bucketCount - 1 - n;
+            if (count[i] == 0) {
+                continue;
+            }
+            long bst = st + i * bucketMs;
+            JSONObject point = new JSONObject();
+            point.put("startDate", bst);
+            point.put("endDate", Math.min(bst + bucketMs, et));
+            point.put("value", (double) sum[i] / count[i]);
+            point.put("min", min[i]);
+            point.put("max", max[i]);
+            point.put("count", count[i]);
+            point.put("unit", "bpm");
+            points.put(point);
+        }
+        return points;
+    }
+}
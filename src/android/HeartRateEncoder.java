@@ -0,0 +1,114 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.HeartRateRecord;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Converts the samples of heart rate records directly into the columnar and binary formats of queries,
+ * without creating a JSON object per sample.
+ * Timestamps and bpms are kept in primitive buffers, which only grow when needed, and are written once
+ * into the columns or into the binary buffer.
+ * The result is the same as converting the samples into data points and passing them to ColumnarEncoder.
+ * An encoder is not thread safe.
+ */
+public class HeartRateEncoder {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private long[] bpms = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Adds the samples of a record after the ones already encoded
+     */
+    public void add(HeartRateRecord record) {
+        List<HeartRateRecord.Sample> samples = record.getSamples();
+        if (size + samples.size() > times.length) {
+            int capacity = Math.max(size + samples.size(), times.length * 2);
+            times = Arrays.copyOf(times, capacity);
+            bpms = Arrays.copyOf(bpms, capacity);
+        }
+        for (HeartRateRecord.Sample sample : samples) {
+            times[size] = sample.getTime().toEpochMilli();
+            bpms[size] = sample.getBeatsPerMinute();
+            size++;
+        }
+    }
+
+    /**
+     * Drops the encoded samples, keeping the buffers
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @param withNumericColumns if false, startDate, endDate and value are left out, as they are sent with pack()
+     * @return the columnar object of the encoded samples, as returned by ColumnarEncoder.encode()
+     */
+    public JSONObject toColumnar(boolean withNumericColumns) throws JSONException {
+        JSONObject columnar = new JSONObject();
+        columnar.put("length", size);
+        JSONArray sources = new JSONArray();
+        JSONArray sourceIndexes = new JSONArray();
+        if (size > 0) {
+            if (withNumericColumns) {
+                JSONArray startDates = new JSONArray();
+                JSONArray endDates = new JSONArray();
+                JSONArray values = new JSONArray();
+                for (int i = 0; i < size; i++) {
+                    startDates.put(times[i]);
+                    endDates.put(times[i]);
+                    values.put(bpms[i]);
+                }
+                columnar.put("startDate", startDates);
+                columnar.put("endDate", endDates);
+                columnar.put("value", values);
+            } else {
+                columnar.put("binary", new JSONArray(Arrays.asList("startDate", "endDate", "value")));
+            }
+            columnar.put("unit", "bpm");
+            // samples have no source fields, they all share the same empty source
+            sources.put(new JSONObject());
+            for (int i = 0; i < size; i++) {
+                sourceIndexes.put(0);
+            }
+        } else if (!withNumericColumns) {
+            columnar.put("binary", new JSONArray());
+        }
+        columnar.put("sources", sources);
+        columnar.put("source", sourceIndexes);
+        return columnar;
+    }
+
+    /**
+     * @return startDate, endDate and value of the encoded samples as 64-bit floats, one column after the other,
+     *         as returned by ColumnarEncoder.pack()
+     */
+    public byte[] pack() {
+        if (size == 0) {
+            return new byte[0];
+        }
+        // typed arrays use the byte order of the platform, which is little endian on Android
+        ByteBuffer buffer = ByteBuffer.allocate(3 * size * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(times[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(times[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(bpms[i]);
+        }
+        return buffer.array();
+    }
+}
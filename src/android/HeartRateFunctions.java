@@ -44,15 +44,16 @@ public class HeartRateFunctions {
 
     public static void populateFromQuery(Record datapoint, JSONArray resultset) throws JSONException {
         HeartRateRecord hrDP = (HeartRateRecord) datapoint;
-        JSONObject hrObj = new JSONObject();
 
         List<HeartRateRecord.Sample> hrSamples = hrDP.getSamples();
         for (HeartRateRecord.Sample sample : hrSamples) {
-            long bpm = sample.getBeatsPerMinute();
-            hrObj.put("startDate", sample.getTime().toEpochMilli());
-            hrObj.put("endDate",  sample.getTime().toEpochMilli());
+            // one object per sample, they are all added to the results
+            JSONObject hrObj = new JSONObject();
+            long time = sample.getTime().toEpochMilli();
+            hrObj.put("startDate", time);
+            hrObj.put("endDate", time);
 
-            hrObj.put("value", bpm);
+            hrObj.put("value", sample.getBeatsPerMinute());
             hrObj.put("unit", "bpm");
             resultset.put(hrObj);
         }
@@ -0,0 +1,290 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory cache of converted data points, used by queries that opt in.
+ * For each query key (data type and options) it keeps the time ranges that have already been read,
+ * indexed by their start, so that a new query only needs to read the ranges that are missing.
+ * The total number of cached points is bounded: when it is exceeded, segments are evicted starting from
+ * the least recently used key.
+ */
+public class QueryCache {
+
+    /**
+     * Max number of query keys kept, the least recently used one is dropped first
+     */
+    private static final int MAX_KEYS = 32;
+
+    /**
+     * Max number of data points kept across all keys, a range with more points than this is not cached
+     */
+    private static final int MAX_POINTS = 100000;
+
+    /**
+     * A time range that has been read, with the data points that were returned for it
+     */
+    private static class Segment {
+        final long st;
+        final long et;
+        final long fetchedAt;
+        final List<JSONObject> points;
+
+        Segment(long st, long et, long fetchedAt, List<JSONObject> points) {
+            this.st = st;
+            this.et = et;
+            this.fetchedAt = fetchedAt;
+            this.points = points;
+        }
+    }
+
+    private final Map<String, TreeMap<Long, Segment>> segmentsByKey = new LinkedHashMap<String, TreeMap<Long, Segment>>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TreeMap<Long, Segment>> eldest) {
+            if (size() > MAX_KEYS) {
+                pointCount -= countPoints(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Number of data points currently cached, across all keys
+     */
+    private int pointCount = 0;
+
+    /**
+     * Finds the parts of a time range that are not cached, dropping the segments older than the TTL
+     *
+     * @param key query key, it must start with the data type
+     * @param st  start of the range, in ms
+     * @param et  end of the range, in ms
+     * @param ttl max age of the cached segments, in ms
+     * @param now current time, in ms
+     * @return the missing ranges as [start, end] pairs, in ascending order
+     */
+    public synchronized List<long[]> missingRanges(String key, long st, long et, long ttl, long now) {
+        List<long[]> gaps = new ArrayList<>();
+        long cursor = st;
+        TreeMap<Long, Segment> segments = segmentsByKey.get(key);
+        if (segments != null) {
+            Iterator<Segment> cached = segments.values().iterator();
+            while (cached.hasNext()) {
+                Segment segment = cached.next();
+                if (now - segment.fetchedAt > ttl) {
+                    pointCount -= segment.points.size();
+                    cached.remove();
+                }
+            }
+            for (Segment segment : overlapping(segments, st, et)) {
+                if (segment.et <= cursor) {
+                    continue;
+                }
+                if (segment.st > cursor) {
+                    gaps.add(new long[] { cursor, segment.st });
+                }
+                cursor = segment.et;
+            }
+        }
+        if (cursor < et) {
+            gaps.add(new long[] { cursor, et });
+        }
+        return gaps;
+    }
+
+    /**
+     * Gets the data points of the cached segments overlapping a time range
+     *
+     * @return one list of points per segment, the points may fall outside the range
+     */
+    public synchronized List<List<JSONObject>> get(String key, long st, long et) {
+        List<List<JSONObject>> pointLists = new ArrayList<>();
+        TreeMap<Long, Segment> segments = segmentsByKey.get(key);
+        if (segments != null) {
+            for (Segment segment : overlapping(segments, st, et)) {
+                pointLists.add(segment.points);
+            }
+        }
+        return pointLists;
+    }
+
+    /**
+     * Stores the data points read for a time range, evicting other segments if the points budget is exceeded
+     */
+    public synchronized void put(String key, long st, long et, List<JSONObject> points, long now) {
+        if (points.size() > MAX_POINTS) {
+            return;
+        }
+        TreeMap<Long, Segment> segments = segmentsByKey.get(key);
+        if (segments == null) {
+            segments = new TreeMap<>();
+            segmentsByKey.put(key, segments);
+        }
+        Segment segment = new Segment(st, et, now, points);
+        Segment replaced = segments.put(st, segment);
+        if (replaced != null) {
+            pointCount -= replaced.points.size();
+        }
+        pointCount += points.size();
+        evict(segment);
+    }
+
+    /**
+     * Drops segments until the points budget is respected, starting from the least recently used key
+     *
+     * @param kept segment that must not be dropped
+     */
+    private void evict(Segment kept) {
+        Iterator<TreeMap<Long, Segment>> keys = segmentsByKey.values().iterator();
+        while (pointCount > MAX_POINTS && keys.hasNext()) {
+            TreeMap<Long, Segment> segments = keys.next();
+            Iterator<Segment> cached = segments.values().iterator();
+            while (pointCount > MAX_POINTS && cached.hasNext()) {
+                Segment segment = cached.next();
+                if (segment != kept) {
+                    pointCount -= segment.points.size();
+                    cached.remove();
+                }
+            }
+            if (segments.isEmpty()) {
+                keys.remove();
+            }
+        }
+    }
+
+    private static int countPoints(TreeMap<Long, Segment> segments) {
+        int count = 0;
+        for (Segment segment : segments.values()) {
+            count += segment.points.size();
+        }
+        return count;
+    }
+
+    /**
+     * Drops everything cached for a data type, to be called when its data changes
+     */
+    public synchronized void invalidate(String datatype) {
+        String changedType = datatype.toLowerCase();
+        Iterator<Map.Entry<String, TreeMap<Long, Segment>>> keys = segmentsByKey.entrySet().iterator();
+        while (keys.hasNext()) {
+            Map.Entry<String, TreeMap<Long, Segment>> entry = keys.next();
+            String key = entry.getKey();
+            if (isAffected(key.substring(0, key.indexOf('|')), changedType)) {
+                pointCount -= countPoints(entry.getValue());
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if the points of a cached data type can change when the records of another one change
+     */
+    static boolean isAffected(String cachedType, String changedType) {
+        if (cachedType.equals(changedType)) {
+            return true;
+        }
+        if (isNutrient(cachedType) && isNutrient(changedType)) {
+            // all nutrients are stored in the same records
+            return true;
+        }
+        // activities can be enriched with calories and distance
+        return cachedType.equals("activity")
+                && (changedType.equals("calories.active") || changedType.equals("distance"));
+    }
+
+    private static boolean isNutrient(String datatype) {
+        return datatype.equals("nutrition")
+                || (datatype.startsWith("nutrition.") && !datatype.equals("nutrition.water"));
+    }
+
+    private static List<Segment> overlapping(TreeMap<Long, Segment> segments, long st, long et) {
+        List<Segment> found = new ArrayList<>();
+        // a segment starting before the range may still cover part of it
+        Long from = segments.floorKey(st);
+        for (Segment segment : segments.tailMap(from != null ? from : st, true).values()) {
+            if (segment.st >= et) {
+                break;
+            }
+            if (segment.et > st) {
+                found.add(segment);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Converts the data points read for a time range into the points of its segment.
+     * A record that crosses the boundary of the range is returned for the neighbouring range too:
+     * its instantaneous points (such as heart rate samples) are only kept by the range they fall in,
+     * so that they don't need to be deduplicated when merging.
+     *
+     * @param pageset the data points read for the range
+     * @param st      start of the range, in ms
+     * @param et      end of the range, in ms
+     * @return the points of the segment
+     */
+    public static List<JSONObject> segmentPoints(JSONArray pageset, long st, long et) {
+        List<JSONObject> points = new ArrayList<>(pageset.length());
+        for (int i = 0; i < pageset.length(); i++) {
+            JSONObject point = pageset.optJSONObject(i);
+            long pst = point.optLong("startDate");
+            long pet = point.optLong("endDate", pst);
+            if (pst == pet && (pst < st || pst >= et)) {
+                continue;
+            }
+            points.add(point);
+        }
+        return points;
+    }
+
+    /**
+     * Merges lists of data points, keeping only the ones within a time range, without duplicates
+     * (a record that crosses the boundary between two segments is returned for both)
+     *
+     * @param pointLists the lists to merge, as returned by segmentPoints()
+     * @param st         start of the range, in ms
+     * @param et         end of the range, in ms
+     * @param ascending  if true, points are sorted from the oldest to the newest
+     * @return the merged points
+     */
+    public static JSONArray merge(List<List<JSONObject>> pointLists, long st, long et, boolean ascending) {
+        Set<String> seen = new HashSet<>();
+        List<JSONObject> merged = new ArrayList<>();
+        for (List<JSONObject> points : pointLists) {
+            for (JSONObject point : points) {
+                long pst = point.optLong("startDate");
+                long pet = point.optLong("endDate", pst);
+                if (pst >= et || (pet <= st && pst < st)) {
+                    continue;
+                }
+                if (pst == pet) {
+                    // instantaneous points are only kept by the segment they fall in, see segmentPoints()
+                    merged.add(point);
+                    continue;
+                }
+                // sleep stages share the id of their session
+                if (seen.add(point.optString("id") + "|" + point.optString("sourceBundleId") + "|" + pst + "|"
+                        + pet)) {
+                    merged.add(point);
+                }
+            }
+        }
+        Comparator<JSONObject> byStart = Comparator.comparingLong(point -> point.optLong("startDate"));
+        Collections.sort(merged, ascending ? byStart : byStart.reversed());
+        return new JSONArray(merged);
+    }
+}
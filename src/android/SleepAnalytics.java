@@ -0,0 +1,190 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.SleepSessionRecord;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Summarizes sleep sessions into buckets, used by aggregated sleep queries with sleepStages.
+ * For each bucket it keeps the time spent in each stage, the time covered by sessions and the number
+ * of awakenings, so that sessions can be added page by page without keeping them in memory.
+ * Stages and sessions that cross the boundary between two buckets are split between them.
+ * Sessions must be added in order of start time. When sessions overlap, for example because two apps
+ * recorded the same night, the overlapping time is only counted for the session that starts first.
+ */
+public class SleepAnalytics {
+
+    /**
+     * Stage types as defined by Health Connect, used as index of the stage durations
+     */
+    private static final int STAGE_TYPES = 8;
+
+    private final long[] starts;
+    private final long[] ends;
+
+    // ms spent in each stage type, per bucket
+    private final long[][] stageMs;
+    // ms covered by sessions, per bucket
+    private final long[] sessionMs;
+    private final int[] sessions;
+    private final int[] awakenings;
+
+    // end of the time covered by the sessions added so far
+    private long coveredUntil = Long.MIN_VALUE;
+
+    /**
+     * @param bounds start and end of each bucket, in ms, in order and not overlapping
+     */
+    public SleepAnalytics(List<long[]> bounds) {
+        int count = bounds.size();
+        starts = new long[count];
+        ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = bounds.get(i)[0];
+            ends[i] = bounds.get(i)[1];
+        }
+        stageMs = new long[count][STAGE_TYPES];
+        sessionMs = new long[count];
+        sessions = new int[count];
+        awakenings = new int[count];
+    }
+
+    /**
+     * Adds a session, sessions must be added in order of start time
+     */
+    public void add(SleepSessionRecord session) {
+        long sst = session.getStartTime().toEpochMilli();
+        long set = session.getEndTime().toEpochMilli();
+        for (int i = firstBucket(sst); i < starts.length && starts[i] < set; i++) {
+            if (overlap(i, sst, set) > 0) {
+                sessions[i]++;
+            }
+        }
+        // only the part of the session not covered by the previous ones is counted
+        long from = Math.max(sst, coveredUntil);
+        coveredUntil = Math.max(coveredUntil, set);
+        if (from >= set) {
+            return;
+        }
+        for (int i = firstBucket(from); i < starts.length && starts[i] < set; i++) {
+            long overlap = overlap(i, from, set);
+            if (overlap > 0) {
+                sessionMs[i] += overlap;
+            }
+        }
+
+        List<SleepSessionRecord.Stage> stages = session.getStages();
+        if (stages.isEmpty()) {
+            // no stages, the whole session is generic sleep
+            addStage(SleepSessionRecord.STAGE_TYPE_SLEEPING, from, set);
+            return;
+        }
+        for (SleepSessionRecord.Stage stage : stages) {
+            int type = stage.getStage();
+            long st = Math.max(stage.getStartTime().toEpochMilli(), from);
+            long et = stage.getEndTime().toEpochMilli();
+            if (st >= et) {
+                continue;
+            }
+            addStage(type, st, et);
+            if (isAwake(type) && st == stage.getStartTime().toEpochMilli()) {
+                int i = bucketOf(st);
+                if (i >= 0) {
+                    awakenings[i]++;
+                }
+            }
+        }
+    }
+
+    private void addStage(int type, long st, long et) {
+        int index = type >= 0 && type < STAGE_TYPES ? type : SleepSessionRecord.STAGE_TYPE_UNKNOWN;
+        for (int i = firstBucket(st); i < starts.length && starts[i] < et; i++) {
+            long overlap = overlap(i, st, et);
+            if (overlap > 0) {
+                stageMs[i][index] += overlap;
+            }
+        }
+    }
+
+    /**
+     * @return one summary per bucket, for example: { startDate: 1700000000000, endDate: 1700086400000,
+     *         value: { duration: 28800, asleep: 27000, efficiency: 0.94, awakenings: 2, sessions: 1,
+     *         stages: { 'sleep.deep': 5400, 'sleep.light': 14400, ... } }, unit: 'sleepSummary' }
+     *         where durations are in seconds and the time covered by overlapping sessions is counted once
+     */
+    public JSONArray toJSON() throws JSONException {
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < starts.length; i++) {
+            buckets.put(bucketToJSON(i));
+        }
+        return buckets;
+    }
+
+    private JSONObject bucketToJSON(int i) throws JSONException {
+        long asleepMs = 0;
+        JSONObject stagesObj = new JSONObject();
+        for (int type = 0; type < STAGE_TYPES; type++) {
+            long ms = stageMs[i][type];
+            if (ms == 0) {
+                continue;
+            }
+            String name = SleepFunctions.stageToString(type);
+            // unknown and sleeping stages share the same name
+            stagesObj.put(name, stagesObj.optDouble(name, 0) + ms / 1000.0);
+            if (!isAwake(type)) {
+                asleepMs += ms;
+            }
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("duration", sessionMs[i] / 1000.0);
+        summary.put("asleep", asleepMs / 1000.0);
+        summary.put("efficiency", sessionMs[i] > 0 ? Math.min(1.0, (double) asleepMs / sessionMs[i]) : JSONObject.NULL);
+        summary.put("awakenings", awakenings[i]);
+        summary.put("sessions", sessions[i]);
+        summary.put("stages", stagesObj);
+
+        JSONObject bucket = new JSONObject();
+        bucket.put("startDate", starts[i]);
+        bucket.put("endDate", ends[i]);
+        bucket.put("value", summary);
+        bucket.put("unit", "sleepSummary");
+        return bucket;
+    }
+
+    private static boolean isAwake(int type) {
+        return type == SleepSessionRecord.STAGE_TYPE_AWAKE
+                || type == SleepSessionRecord.STAGE_TYPE_AWAKE_IN_BED
+                || type == SleepSessionRecord.STAGE_TYPE_OUT_OF_BED;
+    }
+
+    private long overlap(int i, long st, long et) {
+        return Math.min(et, ends[i]) - Math.max(st, starts[i]);
+    }
+
+    /**
+     * @return index of the first bucket that ends after a time
+     */
+    private int firstBucket(long time) {
+        int i = Arrays.binarySearch(starts, time);
+        if (i >= 0) {
+            return i;
+        }
+        // the bucket before the insertion point may still contain the time
+        int before = -i - 2;
+        return before >= 0 && ends[before] > time ? before : -i - 1;
+    }
+
+    /**
+     * @return index of the bucket containing a time, -1 if none
+     */
+    private int bucketOf(long time) {
+        int i = firstBucket(time);
+        return i < starts.length && starts[i] <= time && time < ends[i] ? i : -1;
+    }
+}
@@ -18,14 +18,44 @@ import org.json.JSONObject;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.Period;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import kotlin.reflect.KClass;
 
 public class SleepFunctions {
+
+    /**
+     * Names of the stages as used in JS, indexed by the stage type of Health Connect
+     */
+    private static final String[] STAGE_NAMES = new String[8];
+
+    /**
+     * Stage types of Health Connect, by name of the stage as used in JS
+     */
+    private static final Map<String, Integer> STAGE_TYPES = new HashMap<>();
+
+    static {
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_UNKNOWN] = "sleep";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_AWAKE] = "sleep.awake";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_SLEEPING] = "sleep";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_OUT_OF_BED] = "sleep.outOfBed";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_LIGHT] = "sleep.light";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_DEEP] = "sleep.deep";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_REM] = "sleep.rem";
+        STAGE_NAMES[SleepSessionRecord.STAGE_TYPE_AWAKE_IN_BED] = "sleep.inBed";
+        for (int type = 0; type < STAGE_NAMES.length; type++) {
+            // generic sleep is stored as sleeping, not as unknown
+            if (type != SleepSessionRecord.STAGE_TYPE_UNKNOWN) {
+                STAGE_TYPES.put(STAGE_NAMES[type], type);
+            }
+        }
+    }
+
     public static KClass<? extends Record> dataTypeToClass() {
         return kotlin.jvm.JvmClassMappingKt.getKotlinClass(SleepSessionRecord.class);
     }
@@ -33,6 +63,8 @@ public class SleepFunctions {
     public static void populateFromQuery(Record datapoint, JSONObject obj, JSONArray resultset, boolean keepSession) throws JSONException {
         // holder of stages, only used if returning sessions
         JSONArray sleepStages = new JSONArray();
+        // metadata of the session, already in obj, copied to each stage if returning stages
+        JSONArray metaKeys = keepSession ? null : obj.names();
 
         SleepSessionRecord sleepSessR = (SleepSessionRecord) datapoint;
         obj.put("startDate", sleepSessR.getStartTime().toEpochMilli());
@@ -43,34 +75,7 @@ public class SleepFunctions {
                 JSONObject sleepObj = new JSONObject();
                 sleepObj.put("startDate", stage.getStartTime().toEpochMilli());
                 sleepObj.put("endDate",  stage.getEndTime().toEpochMilli());
-                int stageType = stage.getStage();
-                String sleepSegmentType = "sleep";
-                switch (stageType) {
-                    case SleepSessionRecord.STAGE_TYPE_AWAKE:
-                        sleepSegmentType = "sleep.awake";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_AWAKE_IN_BED:
-                        sleepSegmentType = "sleep.inBed";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_DEEP:
-                        sleepSegmentType = "sleep.deep";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_SLEEPING:
-                        sleepSegmentType = "sleep";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_LIGHT:
-                        sleepSegmentType = "sleep.light";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_OUT_OF_BED:
-                        sleepSegmentType = "sleep.outOfBed";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_REM:
-                        sleepSegmentType = "sleep.rem";
-                        break;
-                    case SleepSessionRecord.STAGE_TYPE_UNKNOWN:
-                        sleepSegmentType = "sleep";
-                        break;
-                }
+                String sleepSegmentType = stageToString(stage.getStage());
 
                 if (keepSession) {
                     sleepObj.put("stage", sleepSegmentType);
@@ -79,7 +84,12 @@ public class SleepFunctions {
                     // this is a bit of a special case where each stage becomes
                     // a separate returned value, to be compatible with HealthKit
                     // the 1 record - 1 element does not hold true here
-                    HealthPlugin.populateFromMeta(sleepObj, datapoint.getMetadata());
+                    if (metaKeys != null) {
+                        for (int i = 0; i < metaKeys.length(); i++) {
+                            String key = metaKeys.getString(i);
+                            sleepObj.put(key, obj.get(key));
+                        }
+                    }
                     sleepObj.put("value", sleepSegmentType);
                     sleepObj.put("unit", "sleep");
                     resultset.put(sleepObj);
@@ -112,6 +122,36 @@ public class SleepFunctions {
         }
     }
 
+    /**
+     * Converts a session with its stages encoded compactly as a flat array of numbers,
+     * three per stage: start relative to the start of the session in ms, duration in ms and stage type,
+     * for example [0, 1200000, 4, 1200000, 3600000, 5, ...]
+     */
+    public static void populateCompactFromQuery(Record datapoint, JSONObject obj) throws JSONException {
+        SleepSessionRecord sleepSessR = (SleepSessionRecord) datapoint;
+        long sessionST = sleepSessR.getStartTime().toEpochMilli();
+        long sessionET = sleepSessR.getEndTime().toEpochMilli();
+        obj.put("startDate", sessionST);
+        obj.put("endDate", sessionET);
+
+        JSONArray encoded = new JSONArray();
+        List<SleepSessionRecord.Stage> stages = sleepSessR.getStages();
+        if (stages.isEmpty()) {
+            // no stages! we can only assume that it's generic sleep
+            encoded.put(0);
+            encoded.put(sessionET - sessionST);
+            encoded.put(SleepSessionRecord.STAGE_TYPE_SLEEPING);
+        }
+        for (SleepSessionRecord.Stage stage : stages) {
+            long stageST = stage.getStartTime().toEpochMilli();
+            encoded.put(stageST - sessionST);
+            encoded.put(stage.getEndTime().toEpochMilli() - stageST);
+            encoded.put(stage.getStage());
+        }
+        obj.put("value", encoded);
+        obj.put("unit", "sleepSessionCompact");
+    }
+
     public static void populateFromAggregatedQuery(AggregationResult response, JSONObject retObj) throws JSONException {
         if (response.get(SleepSessionRecord.SLEEP_DURATION_TOTAL) != null) {
             double sleepSecs = response.get(SleepSessionRecord.SLEEP_DURATION_TOTAL).getSeconds();
@@ -141,24 +181,19 @@ public class SleepFunctions {
         return new AggregateRequest(metrics, timeRange, dor);
     }
 
-    private static int sleepTypeToInt(String sleepSegmentType) {
-        switch (sleepSegmentType) {
-            case "sleep.awake":
-                return SleepSessionRecord.STAGE_TYPE_AWAKE;
-            case "sleep.inBed":
-                return SleepSessionRecord.STAGE_TYPE_AWAKE_IN_BED;
-            case "sleep.deep":
-                return SleepSessionRecord.STAGE_TYPE_DEEP;
-            case "sleep":
-                return SleepSessionRecord.STAGE_TYPE_SLEEPING;
-            case "sleep.light":
-                return SleepSessionRecord.STAGE_TYPE_LIGHT;
-            case "sleep.outOfBed":
-                return SleepSessionRecord.STAGE_TYPE_OUT_OF_BED;
-            case "sleep.rem":
-                return SleepSessionRecord.STAGE_TYPE_REM;
+    /**
+     * @return the name of a stage as used in JS, for example sleep.deep
+     */
+    public static String stageToString(int stageType) {
+        if (stageType < 0 || stageType >= STAGE_NAMES.length) {
+            return "sleep";
         }
-        return SleepSessionRecord.STAGE_TYPE_UNKNOWN;
+        return STAGE_NAMES[stageType];
+    }
+
+    private static int sleepTypeToInt(String sleepSegmentType) {
+        Integer stageType = STAGE_TYPES.get(sleepSegmentType);
+        return stageType != null ? stageType : SleepSessionRecord.STAGE_TYPE_UNKNOWN;
     }
 
     public static void prepareStoreRecords(JSONObject storeObj, List<Record> data) throws JSONException {
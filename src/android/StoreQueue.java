@@ -0,0 +1,184 @@
+package org.apache.cordova.health;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Queue of samples waiting to be stored, used by storeQueued().
+ * Consecutive heart rate samples are merged into a single sample with an array of values,
+ * so that they end up in one HeartRateRecord.
+ * Every sample is also appended to a journal file, so that samples that have not been stored yet
+ * survive the death of the process. The journal is rewritten after each flush.
+ */
+public class StoreQueue {
+
+    private static final String TAG = "cordova-plugin-health";
+
+    /**
+     * Max number of heart rate values merged in a single sample
+     */
+    private static final int MAX_HR_VALUES = 1000;
+
+    private final File journal;
+
+    private final List<JSONObject> pending = new ArrayList<>();
+
+    // number of values in the last pending sample, if it's heart rate
+    private int lastHrValues = 0;
+
+    public StoreQueue(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Loads the samples left in the journal by a previous process
+     */
+    public synchronized void load() {
+        if (!journal.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(journal))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    add(new JSONObject(line));
+                } catch (JSONException ex) {
+                    // a truncated last line is expected if the process died while writing it
+                    Log.e(TAG, "Skipping unreadable sample in the store queue journal", ex);
+                }
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not read the store queue journal", ex);
+        }
+        Log.d(TAG, "Store queue loaded with " + pending.size() + " samples");
+    }
+
+    /**
+     * Adds a sample to the queue and to the journal
+     *
+     * @return the number of samples in the queue
+     */
+    public synchronized int enqueue(JSONObject sample) throws JSONException {
+        add(sample);
+        try (Writer writer = new FileWriter(journal, true)) {
+            writer.write(sample.toString());
+            writer.write('\n');
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not write the store queue journal", ex);
+        }
+        return pending.size();
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return the data types of the samples in the queue
+     */
+    public synchronized Set<String> dataTypes() {
+        Set<String> datatypes = new HashSet<>();
+        for (JSONObject sample : pending) {
+            datatypes.add(sample.optString("dataType"));
+        }
+        return datatypes;
+    }
+
+    /**
+     * Takes all the samples out of the queue. The journal keeps them until flushed() is called.
+     */
+    public synchronized JSONArray drain() {
+        JSONArray samples = new JSONArray(pending);
+        pending.clear();
+        lastHrValues = 0;
+        return samples;
+    }
+
+    /**
+     * Puts back drained samples that could not be stored, before the ones added in the meantime
+     */
+    public synchronized void restore(JSONArray samples) {
+        List<JSONObject> restored = new ArrayList<>(samples.length() + pending.size());
+        for (int i = 0; i < samples.length(); i++) {
+            restored.add(samples.optJSONObject(i));
+        }
+        restored.addAll(pending);
+        pending.clear();
+        pending.addAll(restored);
+    }
+
+    /**
+     * To be called once the drained samples have been stored, rewrites the journal with the samples
+     * added in the meantime
+     */
+    public synchronized void flushed() {
+        try (Writer writer = new FileWriter(journal, false)) {
+            for (JSONObject sample : pending) {
+                writer.write(sample.toString());
+                writer.write('\n');
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Could not write the store queue journal", ex);
+        }
+    }
+
+    private void add(JSONObject sample) throws JSONException {
+        if (!"heart_rate".equalsIgnoreCase(sample.optString("dataType"))) {
+            pending.add(sample);
+            lastHrValues = 0;
+            return;
+        }
+        long st = sample.getLong("startDate");
+        long et = sample.getLong("endDate");
+        JSONArray values = heartRateValues(sample);
+        if (lastHrValues > 0 && lastHrValues + values.length() <= MAX_HR_VALUES) {
+            // merge with the previous heart rate sample
+            JSONObject last = pending.get(pending.size() - 1);
+            JSONArray lastValues = last.getJSONArray("value");
+            for (int i = 0; i < values.length(); i++) {
+                lastValues.put(values.get(i));
+            }
+            last.put("startDate", Math.min(last.getLong("startDate"), st));
+            last.put("endDate", Math.max(last.getLong("endDate"), et));
+            lastHrValues += values.length();
+            return;
+        }
+        JSONObject merged = new JSONObject();
+        merged.put("dataType", sample.getString("dataType"));
+        merged.put("startDate", st);
+        merged.put("endDate", et);
+        merged.put("value", values);
+        pending.add(merged);
+        lastHrValues = values.length();
+    }
+
+    /**
+     * @return the values of a heart rate sample as an array of { bpm, timestamp }
+     */
+    private static JSONArray heartRateValues(JSONObject sample) throws JSONException {
+        JSONArray values = sample.optJSONArray("value");
+        if (values != null) {
+            return new JSONArray(values.toString());
+        }
+        values = new JSONArray();
+        JSONObject value = new JSONObject();
+        value.put("bpm", sample.getLong("value"));
+        value.put("timestamp", sample.getLong("startDate"));
+        values.put(value);
+        return values;
+    }
+}
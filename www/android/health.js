@@ -1,5 +1,65 @@
 var exec = require("cordova/exec");
 
+// converts the timestamps returned by a query to Date objects
+const convertQueryDates = (opts, data) => {
+  // columnar results keep the timestamps in ms
+  if (opts.format) return;
+  for (let i = 0; i < data.length; i++) {
+    if (data[i].startDate) data[i].startDate = new Date(data[i].startDate);
+    if (data[i].endDate) data[i].endDate = new Date(data[i].endDate);
+
+    if (opts.dataType == "sleep" && opts.sleepSession && !opts.compactStages) {
+      // convert start and end dates for single stages
+      for (let stageI = 0; stageI < data[i].value.length; stageI++) {
+        data[i].value[stageI].startDate = new Date(
+          data[i].value[stageI].startDate
+        );
+        data[i].value[stageI].endDate = new Date(
+          data[i].value[stageI].endDate
+        );
+      }
+    }
+  }
+};
+
+// puts back the numeric columns of a binary result, as Float64Array views over the buffer
+const unpackColumns = (columnar, buffer) => {
+  for (let i = 0; i < columnar.binary.length; i++) {
+    columnar[columnar.binary[i]] = new Float64Array(
+      buffer,
+      i * columnar.length * 8,
+      columnar.length
+    );
+  }
+  delete columnar.binary;
+  return columnar;
+};
+
+// converts the Date objects of a sample to be stored to timestamps
+const convertStoreDates = (data) => {
+  if (data.startDate && typeof data.startDate == "object")
+    data.startDate = data.startDate.getTime();
+  if (data.endDate && typeof data.endDate == "object")
+    data.endDate = data.endDate.getTime();
+
+  if (data.dataType == "sleep" && data.sleepSession) {
+    // convert start and end dates for single stages
+    for (let stageI = 0; stageI < data.value.length; stageI++) {
+      if (
+        data.value[stageI].startDate &&
+        typeof data.value[stageI].startDate == "object"
+      )
+        data.value[stageI].startDate = data.value[stageI].startDate.getTime();
+
+      if (
+        data.value[stageI].endDate &&
+        typeof data.value[stageI].endDate == "object"
+      )
+        data.value[stageI].endDate = data.value[stageI].endDate.getTime();
+    }
+  }
+};
+
 module.exports = {
   name: "Health",
 
@@ -19,6 +79,10 @@ module.exports = {
     exec(onSuccess, onError, "health", "openHealthSettings", []);
   },
 
+  getActivityTypes(onSuccess, onError) {
+    exec(onSuccess, onError, "health", "getActivityTypes", []);
+  },
+
   isAuthorized(authObj, onSuccess, onError) {
     exec(onSuccess, onError, "health", "isAuthorized", [authObj]);
   },
@@ -32,91 +96,31 @@ module.exports = {
       opts.startDate = opts.startDate.getTime();
     if (opts.endDate && typeof opts.endDate == "object")
       opts.endDate = opts.endDate.getTime();
+
+    if (opts.stream) {
+      // each page is delivered separately, the last call has done set to true
+      exec(
+        (page) => {
+          convertQueryDates(opts, page.data);
+          onSuccess(page.data, page.done);
+        },
+        onError,
+        "health",
+        "query",
+        [opts]
+      );
+      return;
+    }
+
     exec(
-      (data) => {
-        // Check if we need async recursive processing (only for activity with calories/distance)
-        const needsAsyncRecursion =
-          opts.dataType == "activity" &&
-          (opts.includeCalories || opts.includeDistance);
-
-        if (needsAsyncRecursion) {
-          // Use recursive function for async queries
-          finalizeResult = (i) => {
-            if (i >= data.length) {
-              onSuccess(data);
-            } else {
-              // convert timestamps to date
-              if (data[i].startDate)
-                data[i].startDate = new Date(data[i].startDate);
-              if (data[i].endDate) data[i].endDate = new Date(data[i].endDate);
-
-              // helper function to get aggregated calories for that activity
-              getCals = (onDone) => {
-                this.queryAggregated(
-                  {
-                    startDate: data[i].startDate,
-                    endDate: data[i].endDate,
-                    dataType: "calories.active",
-                  },
-                  (cals) => {
-                    data[i].calories = cals.value;
-                    onDone();
-                  },
-                  onError
-                );
-              };
-              // helper function to get aggregated distance for that activity
-              getDist = (onDone) => {
-                this.queryAggregated(
-                  {
-                    startDate: data[i].startDate,
-                    endDate: data[i].endDate,
-                    dataType: "distance",
-                  },
-                  (dist) => {
-                    data[i].distance = dist.value;
-                    onDone();
-                  },
-                  onError
-                );
-              };
-
-              if (opts.includeCalories) {
-                getCals(() => {
-                  if (opts.includeDistance) {
-                    getDist(() => finalizeResult(i + 1));
-                  } else {
-                    finalizeResult(i + 1);
-                  }
-                });
-              } else {
-                getDist(() => finalizeResult(i + 1));
-              }
-            }
-          };
-          finalizeResult(0);
-        } else {
-          // Use simple loop for all other cases (no async needed)
-          for (let i = 0; i < data.length; i++) {
-            // convert timestamps to date
-            if (data[i].startDate)
-              data[i].startDate = new Date(data[i].startDate);
-            if (data[i].endDate) data[i].endDate = new Date(data[i].endDate);
-
-            if (opts.dataType == "sleep" && opts.sleepSession) {
-              // convert start and end dates for single stages
-              for (let stageI = 0; stageI < data[i].value.length; stageI++) {
-                data[i].value[stageI].startDate = new Date(
-                  data[i].value[stageI].startDate
-                );
-                data[i].value[stageI].endDate = new Date(
-                  data[i].value[stageI].endDate
-                );
-              }
-            }
-          }
-          onSuccess(data);
+      (data, buffer) => {
+        if (opts.format == "binary") {
+          onSuccess(unpackColumns(data, buffer));
+          return;
         }
+        // calories and distance of activities are added natively
+        convertQueryDates(opts, data);
+        onSuccess(data);
       },
       onError,
       "health",
@@ -125,10 +129,51 @@ module.exports = {
     );
   },
 
+  queryBatch(queries, onSuccess, onError) {
+    for (let i = 0; i < queries.length; i++) {
+      if (queries[i].startDate && typeof queries[i].startDate == "object")
+        queries[i].startDate = queries[i].startDate.getTime();
+      if (queries[i].endDate && typeof queries[i].endDate == "object")
+        queries[i].endDate = queries[i].endDate.getTime();
+    }
+    exec(
+      (results) => {
+        for (let i = 0; i < queries.length; i++) {
+          const key = queries[i].key || queries[i].dataType;
+          if (results[key]) convertQueryDates(queries[i], results[key]);
+        }
+        onSuccess(results);
+      },
+      onError,
+      "health",
+      "queryBatch",
+      [queries]
+    );
+  },
+
   queryAggregated(opts, onSuccess, onError) {
     if (typeof opts.startDate == "object")
       opts.startDate = opts.startDate.getTime();
     if (typeof opts.endDate == "object") opts.endDate = opts.endDate.getTime();
+
+    if (opts.bucket && opts.stream) {
+      // buckets are delivered in pages, the last call has done set to true
+      exec(
+        (page) => {
+          for (let i = 0; i < page.data.length; i++) {
+            page.data[i].startDate = new Date(page.data[i].startDate);
+            page.data[i].endDate = new Date(page.data[i].endDate);
+          }
+          onSuccess(page.data, page.done);
+        },
+        onError,
+        "health",
+        "queryAggregated",
+        [opts]
+      );
+      return;
+    }
+
     exec(
       (data) => {
         //reconvert the dates back to Date objects
@@ -154,36 +199,50 @@ module.exports = {
   },
 
   store(data, onSuccess, onError) {
-    if (data.startDate && typeof data.startDate == "object")
-      data.startDate = data.startDate.getTime();
-    if (data.endDate && typeof data.endDate == "object")
-      data.endDate = data.endDate.getTime();
+    convertStoreDates(data);
+    exec(onSuccess, onError, "health", "store", [data]);
+  },
 
-    if (data.dataType == "sleep" && data.sleepSession) {
-      // convert start and end dates for single stages
-      for (let stageI = 0; stageI < data.value.length; stageI++) {
-        if (
-          data.value[stageI].startDate &&
-          typeof data.value[stageI].startDate == "object"
-        )
-          data.value[stageI].startDate = data.value[stageI].startDate.getTime();
-
-        if (
-          data.value[stageI].endDate &&
-          typeof data.value[stageI].endDate == "object"
-        )
-          data.value[stageI].endDate = data.value[stageI].endDate.getTime();
-      }
-    }
+  storeBatch(samples, onSuccess, onError) {
+    for (let i = 0; i < samples.length; i++) convertStoreDates(samples[i]);
+    exec(onSuccess, onError, "health", "storeBatch", [samples]);
+  },
 
-    exec(onSuccess, onError, "health", "store", [data]);
+  storeQueued(data, onSuccess, onError) {
+    convertStoreDates(data);
+    exec(onSuccess, onError, "health", "storeQueued", [data]);
+  },
+
+  flushStoreQueue(onSuccess, onError) {
+    exec(onSuccess, onError, "health", "flushStoreQueue", []);
   },
 
   delete(data, onSuccess, onError) {
-    if (data.startDate && typeof data.startDate == "object")
-      data.startDate = data.startDate.getTime();
-    if (data.endDate && typeof data.endDate == "object")
-      data.endDate = data.endDate.getTime();
+    // an array of ids and ranges can be deleted at once
+    const items = Array.isArray(data) ? data : [data];
+    for (let i = 0; i < items.length; i++) {
+      if (items[i].startDate && typeof items[i].startDate == "object")
+        items[i].startDate = items[i].startDate.getTime();
+      if (items[i].endDate && typeof items[i].endDate == "object")
+        items[i].endDate = items[i].endDate.getTime();
+    }
     exec(onSuccess, onError, "health", "delete", [data]);
   },
+
+  getChangesToken(opts, onSuccess, onError) {
+    exec(onSuccess, onError, "health", "getChangesToken", [opts]);
+  },
+
+  getChanges(opts, onSuccess, onError) {
+    exec(
+      (changes) => {
+        convertQueryDates(opts, changes.upserted);
+        onSuccess(changes);
+      },
+      onError,
+      "health",
+      "getChanges",
+      [opts]
+    );
+  },
 };